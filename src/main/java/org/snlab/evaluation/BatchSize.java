@@ -118,6 +118,7 @@ public class BatchSize {
         System.gc();
 
         InverseModel verifier = new InverseModel (network, new PersistentPorts());
+        Main.evalOptions.configure(verifier);
         ArrayList<Rule> rules = new ArrayList<>();
 
         int cnt = 0;
@@ -161,6 +162,7 @@ public class BatchSize {
     private static double testWithBatchSizePrime(Network network, int size) {
         System.gc();
         InverseModel verifier = new InverseModel(network, new PersistentPorts());
+        Main.evalOptions.configure(verifier);
 
         int cnt = 0;
         ArrayList<Rule> insertion = new ArrayList<>(), deletion = new ArrayList<>();
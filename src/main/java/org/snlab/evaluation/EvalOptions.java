@@ -8,6 +8,7 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.snlab.flash.ModelManager.InverseModel;
 
 public class EvalOptions {
     /**
@@ -16,10 +17,16 @@ public class EvalOptions {
     public String eval;
     public String dataset;
     public int batchSize = 1;
+    public long targetLatency = 0; // in ms, the batch sizes of BUV/CE2D are picked online if positive
     public boolean enableFIMT = true;
     public boolean enablePAT = true;
     public boolean enableCE2D = true;
     public boolean debug = false;
+    // the optimizations of InverseModel, all off so the evaluated algorithm is the original one unless asked for
+    public boolean adaptiveRebuild = false;
+    public boolean parallel = false;
+    public boolean batchedAggregation = false;
+    public boolean indexECs = false;
     public String output;
 
     public String mode = "CE2D";
@@ -32,6 +39,7 @@ public class EvalOptions {
         options.addRequiredOption("e", "eval", true, "The evaluation to be run");
         options.addOption("d", "dataset", true, "The dataset for evaluation");
         options.addOption("b", "batch", true, "The batch size for FIMT");
+        options.addOption("l", "latency", true, "The verification latency target (ms), picks the batch sizes online");
         options.addOption("disableFIMT", false, "Disable Fast Inverse Model Transformation");
         options.addOption("disablePAT", false, "Disable Persistent Action Tree");
         options.addOption("disableCE2D", false, "Disable Consistent Efficient Early Detection");
@@ -39,6 +47,10 @@ public class EvalOptions {
         options.addOption("o", "output", true, "Output report file");
         options.addOption("h", "help", false, "Print this message");
         options.addOption("debug", false, "Enable debug mode");
+        options.addOption("adaptiveRebuild", false, "Rebuild devices with deletion-heavy batches from their rules");
+        options.addOption("parallel", false, "Run both stages of a batch in parallel on a thread-safe BDD backend");
+        options.addOption("batchedAggregation", false, "Unite the deltas of a port by a balanced tree");
+        options.addOption("indexECs", false, "Only intersect a change with the ECs sharing its leading destination bits");
 
         options.addOption("mode", true, "Verification mode: PUV/BUV/CE2D");
     }
@@ -73,12 +85,37 @@ public class EvalOptions {
         if (c.hasOption("debug")) {
             debug = true;
         }
+        if (c.hasOption("adaptiveRebuild")) {
+            adaptiveRebuild = true;
+        }
+        if (c.hasOption("parallel")) {
+            parallel = true;
+        }
+        if (c.hasOption("batchedAggregation")) {
+            batchedAggregation = true;
+        }
+        if (c.hasOption("indexECs")) {
+            indexECs = true;
+        }
         if (c.hasOption("mode")) {
             mode = c.getOptionValue("mode");
         }
         if (c.hasOption("b")) {
             batchSize = Integer.valueOf(c.getOptionValue("b"));
         }
+        if (c.hasOption("l")) {
+            targetLatency = Long.valueOf(c.getOptionValue("l"));
+        }
         output = c.getOptionValue("o", "tmp/log.txt");
     }
+
+    /**
+     * Turns on the optimizations of the model asked for.
+     */
+    public void configure(InverseModel model) {
+        model.setAdaptiveRebuild(adaptiveRebuild);
+        model.setParallel(parallel);
+        model.setBatchedAggregation(batchedAggregation);
+        model.setIndexedECs(indexECs);
+    }
 }
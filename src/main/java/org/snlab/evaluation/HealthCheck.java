@@ -30,6 +30,7 @@ public class HealthCheck {
 
         APVerifier APVerifier = new APVerifier(network, new ArrayPorts());
         InverseModel FIMT = new InverseModel(network, new PersistentPorts());
+        Main.evalOptions.configure(FIMT);
         AtomVerifier AtomVerifier = new AtomVerifier();
 
         int cnt = 0;
@@ -86,6 +86,7 @@ public class I2CE2D {
 
         Main.evalOptions.mode = "CE2D";
         Dispatcher dispatcher = new Dispatcher(network, 10);
+        if (Main.evalOptions.targetLatency > 0) dispatcher.setTargetLatency(Main.evalOptions.targetLatency * 1000000L, 1000);
         Dispatcher.logger.startAt = System.nanoTime();
 
         while (!dq.isEmpty()) {
@@ -96,6 +97,7 @@ public class I2CE2D {
                 e.printStackTrace();
             }
         }
+        dispatcher.flush(); // the tail of the stream, short of a batch
     }
 
     private static void runBUV() {
@@ -106,6 +108,7 @@ public class I2CE2D {
 
         Main.evalOptions.mode = "BUV";
         Dispatcher dispatcher = new Dispatcher(network, 10);
+        if (Main.evalOptions.targetLatency > 0) dispatcher.setTargetLatency(Main.evalOptions.targetLatency * 1000000L, 1000);
         Dispatcher.logger.startAt = System.nanoTime();
 
         while (!dq.isEmpty()) {
@@ -116,6 +119,7 @@ public class I2CE2D {
                 e.printStackTrace();
             }
         }
+        dispatcher.flush(); // the tail of the stream, short of a batch
     }
 
     private static void runPUV() {
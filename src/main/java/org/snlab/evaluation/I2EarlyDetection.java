@@ -72,6 +72,7 @@ public class I2EarlyDetection {
                     e.printStackTrace();
                 }
             }
+            dispatcher.flush(); // the tail of the stream, short of a batch
         }
         Dispatcher.logger.writeFile();
     }
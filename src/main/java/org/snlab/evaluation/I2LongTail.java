@@ -29,6 +29,7 @@ public class I2LongTail {
                 List<Device> remains = shuffled.subList(0, 9 - i);
 
                 InverseModel verifier = new InverseModel(network);
+                Main.evalOptions.configure(verifier);
                 EarlyDetector earlyDetector = new EarlyDetector();
                 long startAt = System.nanoTime();
                 
@@ -37,7 +38,7 @@ public class I2LongTail {
                     verifier.update(conflictFreeChanges);
                     Setting setting = new Setting(i, cnt, startAt);
                     earlyDetector.detectLoop(setting, network, new HashSet<>(Arrays.asList(device)),
-                            verifier.getPortToPredicate());
+                            verifier.snapshotPortToPredicate()); // read by the detector thread
                 }
             }
         }
@@ -1,6 +1,5 @@
 package org.snlab.evaluation;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -34,8 +33,9 @@ public class LNet1AllPair {
         Graph<Device, PGEdge> pg = buildPG(network);
 
         InverseModel verifier = new InverseModel(network);
+        Main.evalOptions.configure(verifier);
 
-        int hs = verifier.bddEngine.encodeIpv4(BigInteger.valueOf(ip), 16);
+        long hs = verifier.bddEngine.encodeIpv4(ip, 16);
         PropertyChecker policyChecker = new PropertyChecker(network, pg, verifier.bddEngine, hs);
         Dispatcher.logger.startAt = System.nanoTime();
 
@@ -44,7 +44,7 @@ public class LNet1AllPair {
         int i = 0;
         for (Device device : allDevices) {
             List<Rule> rulesInSubspace = device.getInitialRules().stream()
-                    .filter(rule -> rule.getMatch().longValue() == ip)
+                    .filter(rule -> rule.getMatch() == ip)
                     .collect(Collectors.toList());
             ConflictFreeChanges conflictFreeChanges = verifier.insertMiniBatch(rulesInSubspace);
             verifier.update(conflictFreeChanges);
@@ -4,8 +4,8 @@ import org.jgrapht.alg.util.Pair;
 import org.snlab.evaluation.others.APVerifier;
 import org.snlab.evaluation.others.AtomVerifier;
 import org.snlab.evaluation.others.Checker;
-import org.snlab.flash.ModelManager.ParConflictFreeChanges;
-import org.snlab.flash.ModelManager.ParInverseModel;
+import org.snlab.flash.ModelManager.BDDBackend;
+import org.snlab.flash.ModelManager.BDDSizing;
 import org.snlab.flash.ModelManager.Ports.ArrayPorts;
 import org.snlab.flash.ModelManager.Ports.Ports;
 import org.snlab.flash.ModelManager.Ports.PersistentPorts;
@@ -199,6 +199,7 @@ public class Overall {
     // Notice Deltanet* has more #ECs compared to APKeep and Flash, which should be slower in this part.
     private static void checkAllPairRechabilityAndLoopfree(Network network) throws IOException {
         InverseModel ver1 = new InverseModel(network, new PersistentPorts());
+        Main.evalOptions.configure(ver1);
         ConflictFreeChanges conflictFreeChanges = ver1.insertMiniBatch(network.getInitialRules());
         ver1.update(conflictFreeChanges);
 
@@ -207,7 +208,7 @@ public class Overall {
         printWriter.println();
 
         double s;
-        HashMap<Port, HashSet<Number>> model = ver1.getPortToPredicate();
+        Map<Port, ? extends Set<Number>> model = ver1.getPortToPredicate();
 
         s = 0;
         for (int i = 0; i < warmupRepeat; i ++) model = ver1.getPortToPredicate();
@@ -300,7 +301,8 @@ public class Overall {
     private static double seq(Network network, boolean asBatch) {
         System.gc();
         memoryBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-        InverseModel verifier = new InverseModel(network, new PersistentPorts());
+        InverseModel verifier = new InverseModel(network, 32, BDDBackend.Type.JDD, BDDSizing.of(network), new PersistentPorts());
+        Main.evalOptions.configure(verifier);
         if (asBatch) {
             ConflictFreeChanges conflictFreeChanges = verifier.insertMiniBatch(network.getInitialRules());
             verifier.update(conflictFreeChanges);
@@ -333,9 +335,10 @@ public class Overall {
     private static double seqNeo(Network network, boolean asBatch) {
         System.gc();
         memoryBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-        ParInverseModel verifier = new ParInverseModel(network, new PersistentPorts());
+        InverseModel verifier = new InverseModel(network, 32, BDDBackend.Type.NANO, BDDSizing.of(network), new PersistentPorts());
+        Main.evalOptions.configure(verifier);
         if (asBatch) {
-            ParConflictFreeChanges conflictFreeChanges = verifier.insertMiniBatch(network.getInitialRules());
+            ConflictFreeChanges conflictFreeChanges = verifier.insertMiniBatch(network.getInitialRules());
             verifier.update(conflictFreeChanges);
             m3 += printMemory();
             if (testDeletion) {
@@ -346,14 +349,14 @@ public class Overall {
             t3 += verifier.bddEngine.opCnt;
         } else {
             for (Rule rule : network.getInitialRules()) {
-                ParConflictFreeChanges conflictFreeChanges = verifier.insertMiniBatch(new ArrayList<>(Collections.singletonList(rule)));
+                ConflictFreeChanges conflictFreeChanges = verifier.insertMiniBatch(new ArrayList<>(Collections.singletonList(rule)));
                 verifier.update(conflictFreeChanges);
             }
             m4 += printMemory();
             if (testDeletion) {
                 System.out.println("NeoFlash #EC (deleted to empty): " + verifier.predSize() + " w/o Batch");
                 for (Rule rule : network.getInitialRules()) {
-                    ParConflictFreeChanges conflictFreeChanges = verifier.miniBatch(new ArrayList<>(), new ArrayList<>(Collections.singletonList(rule)));
+                    ConflictFreeChanges conflictFreeChanges = verifier.miniBatch(new ArrayList<>(), new ArrayList<>(Collections.singletonList(rule)));
                     verifier.update(conflictFreeChanges);
                 }
             }
@@ -436,6 +439,7 @@ public class Overall {
         System.gc();
         memoryBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
         InverseModel verifier = new InverseModel(network, new PersistentPorts());
+        Main.evalOptions.configure(verifier);
         if (asBatch) {
             ArrayList<Rule> insertion = new ArrayList<>(), deletion = new ArrayList<>();
             for (Pair<Boolean, Rule> pair : network.updateSequence) {
@@ -5,6 +5,7 @@ import java.util.*;
 import org.snlab.flash.ModelManager.Ports.Ports;
 import org.snlab.flash.ModelManager.BDDEngine;
 import org.snlab.flash.ModelManager.IndexedRules;
+import org.snlab.flash.ModelManager.RuleTable;
 import org.snlab.network.Device;
 import org.snlab.network.Network;
 import org.snlab.network.Port;
@@ -12,9 +13,9 @@ import org.snlab.network.Rule;
 
 class Change {
     Port oldPort, newPort;
-    int bdd;
+    long bdd;
 
-    Change(int bdd, Port oldPort, Port newPort) {
+    Change(long bdd, Port oldPort, Port newPort) {
         this.bdd = bdd;
         this.oldPort = oldPort;
         this.newPort = newPort;
@@ -28,11 +29,12 @@ public class APVerifier {
     public final BDDEngine bddEngine;
     private final ArrayList<Change> changes;
     private final HashMap<Device, IndexedRules> deviceToRules;
+    private final RuleTable ruleTable; // the ids of the rules in deviceToRules
 
-    private int size = 32;
-    private final HashMap<Port, HashSet<Integer>> portToPreds;
-    private final HashMap<Integer, Ports> predToPorts;
-    private final HashMap<Rule, Integer> ruleToHits, ruleToBddMatch;
+    private final int size;
+    private final HashMap<Port, HashSet<Long>> portToPreds;
+    private final HashMap<Long, Ports> predToPorts;
+    private final HashMap<Rule, Long> ruleToHits, ruleToBddMatch;
 
     private double s1 = 0, s2 = 0, sports = 0;
 
@@ -46,28 +48,29 @@ public class APVerifier {
 
     public APVerifier(Network network, int size, Ports base) {
         this(network, new BDDEngine(size), base);
-        this.size = size;
     }
 
     public APVerifier(Network network, BDDEngine bddEngine, Ports base) {
         this.bddEngine = bddEngine;
+        this.size = bddEngine.getSize();
         this.changes = new ArrayList<>();
         this.portToPreds = new HashMap<>();
         this.predToPorts = new HashMap<>();
         this.deviceToRules = new HashMap<>();
+        this.ruleTable = new RuleTable();
         this.ruleToHits = new HashMap<>();
         this.ruleToBddMatch = new HashMap<>();
 
         // Relabel every device as the index used by Ports, starting from 0
-        for (Device device : network.getAllDevices()) this.deviceToRules.put(device, new IndexedRules());
+        for (Device device : network.getAllDevices()) this.deviceToRules.put(device, new IndexedRules(bddEngine.getSchema()));
 
         // Each device has a default rule with default action.
         ArrayList<Port> key = new ArrayList<>();
         for (Device device : network.getAllDevices()) {
             Port p = device.getPort("default");
             key.add(p);
-            Rule rule = new Rule(device, 0, 0, -1, p);
-            deviceToRules.get(device).insert(rule, size);
+            Rule rule = size > 32 ? new Rule(device, 0L, 0L, 0, -1, p) : new Rule(device, 0, 0, -1, p);
+            deviceToRules.get(device).insert(rule, ruleTable.add(rule), size);
             ruleToBddMatch.put(rule, BDDEngine.BDDTrue);
             ruleToHits.put(rule, bddEngine.ref(BDDEngine.BDDTrue));
 
@@ -79,13 +82,14 @@ public class APVerifier {
 
     public void insertRule(Rule rule) {
         s1 -= System.nanoTime();
-        ruleToBddMatch.put(rule, bddEngine.encodeIpv4(rule.getMatch(), rule.getPrefix(), rule.getSrc(), rule.getSrcSuffix()));
+        ruleToBddMatch.put(rule, bddEngine.encode(rule));
         ruleToHits.put(rule, bddEngine.ref(ruleToBddMatch.get(rule)));
         IndexedRules targetNode = deviceToRules.get(rule.getDevice());
 
-        for (Rule r : targetNode.getAllOverlappingWith(rule, size)) {
+        for (int id : targetNode.getAllOverlappingWith(rule, size)) {
+            Rule r = ruleTable.getRule(id);
             if (r.getPriority() > rule.getPriority()) {
-                int newHit = bddEngine.diff(ruleToHits.get(rule), ruleToBddMatch.get(r));
+                long newHit = bddEngine.diff(ruleToHits.get(rule), ruleToBddMatch.get(r));
                 bddEngine.deRef(ruleToHits.get(rule));
                 ruleToHits.replace(rule, newHit);
             }
@@ -93,9 +97,9 @@ public class APVerifier {
             if (ruleToHits.get(rule) == BDDEngine.BDDFalse) break;
 
             if (r.getPriority() < rule.getPriority()) {
-                int intersection = bddEngine.and(ruleToHits.get(r), ruleToHits.get(rule));
+                long intersection = bddEngine.and(ruleToHits.get(r), ruleToHits.get(rule));
 
-                int newHit = bddEngine.diff(ruleToHits.get(r), intersection);
+                long newHit = bddEngine.diff(ruleToHits.get(r), intersection);
                 bddEngine.deRef(ruleToHits.get(r));
                 ruleToHits.replace(r, newHit);
 
@@ -106,7 +110,7 @@ public class APVerifier {
                 }
             }
         }
-        targetNode.insert(rule, size);
+        targetNode.insert(rule, ruleTable.add(rule), size);
         s1 += System.nanoTime();
     }
 
@@ -116,17 +120,16 @@ public class APVerifier {
         s1 -= System.nanoTime();
         IndexedRules targetNode = deviceToRules.get(rule.getDevice());
 
-        ArrayList<Rule> sorted = targetNode.getAllOverlappingWith(rule, size);
-        Comparator<Rule> comp = (Rule lhs, Rule rhs) -> rhs.getPriority() - lhs.getPriority();
-        sorted.sort(comp);
+        int[] sorted = targetNode.getAllOverlappingWith(rule, size); // by descending priority
 
-        for (Rule r : sorted) {
+        for (int id : sorted) {
+            Rule r = ruleTable.getRule(id);
             if (ruleToHits.get(rule) == BDDEngine.BDDFalse) break;
 
             if (r.getPriority() < rule.getPriority()) {
-                int intersection = bddEngine.and(ruleToBddMatch.get(r), ruleToHits.get(rule));
+                long intersection = bddEngine.and(ruleToBddMatch.get(r), ruleToHits.get(rule));
 
-                int newHit = bddEngine.or(ruleToHits.get(r), intersection);
+                long newHit = bddEngine.or(ruleToHits.get(r), intersection);
                 bddEngine.deRef(ruleToHits.get(r));
                 ruleToHits.replace(r, newHit);
 
@@ -141,7 +144,9 @@ public class APVerifier {
                 }
             }
         }
-        targetNode.remove(rule, size);
+        int id = ruleTable.getId(rule);
+        targetNode.remove(rule, id, size);
+        ruleTable.remove(id);
         bddEngine.deRef(ruleToBddMatch.get(rule));
         bddEngine.deRef(ruleToHits.get(rule));
         ruleToBddMatch.remove(rule);
@@ -149,15 +154,15 @@ public class APVerifier {
         s1 += System.nanoTime();
     }
 
-    private HashSet<Integer> transferredPreds;
+    private HashSet<Long> transferredPreds;
 
     // Eagerly merge predicates by default
-    public HashSet<Integer> update() {
+    public HashSet<Long> update() {
         return this.update(true);
     }
 
     @SuppressWarnings("unchecked")
-    public HashSet<Integer> update(boolean merge) {
+    public HashSet<Long> update(boolean merge) {
         if (changes.isEmpty()) {
             return new HashSet<>();
         }
@@ -168,14 +173,14 @@ public class APVerifier {
             this.portToPreds.putIfAbsent(c.oldPort, new HashSet<>());
             this.portToPreds.putIfAbsent(c.newPort, new HashSet<>());
 
-            HashSet<Integer> oldPredicates = (HashSet<Integer>) this.portToPreds.get(c.oldPort).clone();
-            for (int p : oldPredicates) {
-                int intersection = bddEngine.and(p, c.bdd);
+            HashSet<Long> oldPredicates = (HashSet<Long>) this.portToPreds.get(c.oldPort).clone();
+            for (long p : oldPredicates) {
+                long intersection = bddEngine.and(p, c.bdd);
                 if (intersection == BDDEngine.BDDFalse) {
                     bddEngine.deRef(intersection);
                     continue;
                 } else {
-                    int tmp = c.bdd;
+                    long tmp = c.bdd;
                     c.bdd = bddEngine.diff(c.bdd, intersection);
                     bddEngine.deRef(tmp);
                 }
@@ -190,9 +195,9 @@ public class APVerifier {
                 }
 
                 if (merge) {
-                    HashSet<Integer> newPredicates = (HashSet<Integer>) this.portToPreds.get(c.newPort).clone();
-                    int oldTarget = intersection;
-                    for (int t : newPredicates) {
+                    HashSet<Long> newPredicates = (HashSet<Long>) this.portToPreds.get(c.newPort).clone();
+                    long oldTarget = intersection;
+                    for (long t : newPredicates) {
                         if (oldTarget != t && predToPorts.get(intersection).equals(predToPorts.get(t))) {
                             intersection = this.merge(intersection, t);
                         }
@@ -208,7 +213,7 @@ public class APVerifier {
         return this.transferredPreds;
     }
 
-    private void transfer(int p, Port from, Port to) {
+    private void transfer(long p, Port from, Port to) {
         if (from == to) return;
 
         //  (predicate: p) takes (port:to)
@@ -223,12 +228,12 @@ public class APVerifier {
         this.transferredPreds.add(p);
     }
 
-    private int subtract(int p, int p1, Port pPort, Port p1Port) {
+    private long subtract(long p, long p1, Port pPort, Port p1Port) {
         if (p == p1) {
             System.out.println("Error: in subtract() function, p equals to p1");
         }
 
-        int p2 = bddEngine.diff(p, p1);
+        long p2 = bddEngine.diff(p, p1);
 
         // (predicate:p1) takes p1Port
         if (this.predToPorts.containsKey(p1)) {
@@ -270,12 +275,12 @@ public class APVerifier {
         return p2;
     }
 
-    private int merge(int p1, int p2) {
+    private long merge(long p1, long p2) {
         if (!predToPorts.get(p1).equals(predToPorts.get(p2))) {
             System.out.println("Error: in merge() function, p1 and p2 takes different set of ports");
         }
 
-        int p = bddEngine.or(p1, p2);
+        long p = bddEngine.or(p1, p2);
 
         // (predicate:p) takes the union of (ports for p1) and (ports for p2)
         if (this.predToPorts.containsKey(p)) {
@@ -53,7 +53,7 @@ public class AtomVerifier {
      * @return changes in form of {(a, aPrime), ...}
      */
     private ArrayList<Pair<Long, Long>> createAtom(Rule r) {
-        long L = r.getMatch().longValue(), H = rH(L, r.getPrefix());
+        long L = r.getMatch(), H = rH(L, r.getPrefix());
         ArrayList<Pair<Long, Long>> ret = new ArrayList<>();
 
         // For lpm-match only, each rule is represented as a single interval;
@@ -74,7 +74,7 @@ public class AtomVerifier {
      */
     private TreeSet<Long> interval(Rule r) {
         TreeSet<Long> ret = new TreeSet<>();
-        long L = r.getMatch().longValue(), H = rH(L, r.getPrefix());  // [L, H)
+        long L = r.getMatch(), H = rH(L, r.getPrefix());  // [L, H)
 
         int wildcards = (r.getSrcSuffix() == 0 ? 0 : 12 - r.getSrcSuffix());
         for (int i = 0; i < (1L << wildcards); i ++) {
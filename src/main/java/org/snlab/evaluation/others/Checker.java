@@ -8,18 +8,20 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Checker {
     static HashSet predicates;
     static HashMap<Device, HashSet> sourceToPreds;
 
-    public static double allPair(Network network, HashMap<Port, HashSet<Number>> model) {
+    public static double allPair(Network network, Map<Port, ? extends Set<Number>> model) {
         predicates = new HashSet<>();
         sourceToPreds = new HashMap<>();
 
         double s = 0;
         s -= System.nanoTime();
-        for (HashSet<Number> preds : model.values()) predicates.addAll(preds);
+        for (Set<Number> preds : model.values()) predicates.addAll(preds);
         for (Device device : network.getAllDevices()) sourceToPreds.put(device, new HashSet<>());
         for (Device device : network.getAllDevices()) {
             traverse(model, device, new HashSet<>(predicates), new ArrayList<>()); // null represents the universal set
@@ -77,7 +79,7 @@ public class Checker {
         history.remove(current);
     }
 
-    public static void traverse(HashMap<Port, HashSet<Number>> model, Device current, HashSet<Number> pset, ArrayList<Device> history) {
+    public static void traverse(Map<Port, ? extends Set<Number>> model, Device current, HashSet<Number> pset, ArrayList<Device> history) {
         if (pset == null) return;
         pset.removeAll(sourceToPreds.get(current));
         if (pset.size() == 0 || history.contains(current)) return;
@@ -89,7 +91,8 @@ public class Checker {
             if (t == null) { // send to black hole (default) or an external port
                 continue;
             }
-            HashSet<Number> labels = model.get(egress), intersection;
+            Set<Number> labels = model.get(egress);
+            HashSet<Number> intersection;
             if (labels != null) {
                 intersection = new HashSet<>(pset);
                 intersection.retainAll(labels);
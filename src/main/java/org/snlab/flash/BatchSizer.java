@@ -0,0 +1,117 @@
+package org.snlab.flash;
+
+/**
+ * Picks the size of the next batch of an update stream online, instead of a fixed one (1 for PUV, 10 for BUV/CE2D),
+ * as the cost of a batch differs a lot by dataset (see the BatchSize evaluation).
+ *
+ * The costs of the two stages are fitted as a + b * size over the recent batches: Stage 1 identifies changes rule by
+ * rule, while Stage 2 is amortized over the batch, so each stage falls back to linear and constant respectively, until
+ * batches of different sizes are seen. Updates arrive at a measured rate; the oldest queued update waits for the
+ * batch to fill, then for the batch to be verified. The largest batch which keeps this latency within the target is
+ * taken, since larger batches verify more updates per second; if none does (e.g., behind a backlog, or the queued
+ * updates have waited too long for the stream to go on), the largest batch at hand is taken to catch up. The size grows
+ * by at most twice per batch, so an extrapolated fit is not trusted too far.
+ * Batches are only picked as updates arrive, so the end of a stream is drained explicitly (see Dispatcher.flush).
+ */
+public class BatchSizer {
+    private static final double DECAY = 0.9; // the weight of the past in the fits and the rate, per batch or arrival
+
+    private final long targetLatency; // in ns
+    private final int maxBatchSize;
+    private final Fit stage1 = new Fit(true), stage2 = new Fit(false);
+    private double interArrival = 0; // the decayed average ns between updates
+    private long lastArrival = -1;
+    private int batchSize = 1;
+
+    /**
+     * @param targetLatency the verification latency of an update to be met, in ns, from its arrival to its batch verified
+     * @param maxBatchSize  the largest batch ever taken
+     */
+    public BatchSizer(long targetLatency, int maxBatchSize) {
+        this.targetLatency = targetLatency;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Records n updates arriving now.
+     */
+    public void arrived(int n) {
+        long now = System.nanoTime();
+        if (lastArrival >= 0) {
+            double t = (double) (now - lastArrival) / n;
+            for (int i = 0; i < n; i++) interArrival = DECAY * interArrival + (1 - DECAY) * t;
+        }
+        lastArrival = now;
+    }
+
+    /**
+     * @param queued the number of updates waiting
+     * @return the number of updates to be verified now as a batch, 0 if waiting for more pays off
+     */
+    public int next(int queued) {
+        if (queued == 0) return 0;
+        int limit = Math.min(maxBatchSize, 2 * batchSize);
+        if (stage1.w == 0) return batchSize = Math.min(queued, limit); // nothing measured yet
+        int ret = 0;
+        // the oldest queued update arrived about (queued - 1) inter-arrivals before the last one
+        double waited = lastArrival < 0 ? 0 : System.nanoTime() - lastArrival + (queued - 1) * interArrival;
+        for (int size = 1; size <= limit; size++) {
+            if (waited + latency(size, queued) <= targetLatency) ret = size;
+        }
+        if (ret == 0) ret = Math.min(queued, limit); // behind: catch up with the largest batch at hand
+        if (ret > queued) return 0;
+        return batchSize = ret;
+    }
+
+    /**
+     * @return the expected latency of the oldest of the queued updates from now on, if a batch of the size is taken
+     */
+    private double latency(int size, int queued) {
+        double fill = Math.max(0, size - queued) * interArrival;
+        return fill + stage1.predict(size) + stage2.predict(size);
+    }
+
+    /**
+     * Records the measured costs of a batch, in ns.
+     */
+    public void record(int size, long stage1Time, long stage2Time) {
+        stage1.add(size, stage1Time);
+        stage2.add(size, stage2Time);
+    }
+
+    /**
+     * @return the size of the last batch taken
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * A least-squares fit of t = a + b * size over decayed sums, which falls back to t proportional to the size (linear)
+     * or to the average t (constant) while the sizes seen hardly vary.
+     */
+    private static final class Fit {
+        private final boolean linear;
+        private double w, sx, sxx, st, sxt;
+
+        Fit(boolean linear) {
+            this.linear = linear;
+        }
+
+        void add(int size, long t) {
+            w = DECAY * w + 1;
+            sx = DECAY * sx + size;
+            sxx = DECAY * sxx + (double) size * size;
+            st = DECAY * st + t;
+            sxt = DECAY * sxt + (double) size * t;
+        }
+
+        double predict(int size) {
+            if (w == 0) return 0;
+            double mx = sx / w, mt = st / w, var = sxx / w - mx * mx;
+            if (var < 0.25) return linear ? mt / mx * size : mt;
+            double b = Math.max(0, (sxt / w - mx * mt) / var), a = Math.max(0, mt - b * mx);
+            return a + b * size;
+        }
+    }
+}
@@ -20,31 +20,31 @@ import org.snlab.network.Network;
 import org.snlab.network.Port;
 
 public class AllPairChecker {
-    private Map<Integer, Graph<Device, PGEdge>> ecToGraph = new HashMap<>();
+    private Map<Long, Graph<Device, PGEdge>> ecToGraph = new HashMap<>();
     private Set<Device> closed = new HashSet<>();
     private Network network;
     private BDDEngine bddEngine;
-    private int hs;
+    private long hs;
     public boolean foundBug = false;
 
-    public AllPairChecker(Network network, BDDEngine bddEngine, int hs) {
+    public AllPairChecker(Network network, BDDEngine bddEngine, long hs) {
         this.network = network;
         this.bddEngine = bddEngine;
         this.hs = hs;
-        ecToGraph.put(1, createGraph());
+        ecToGraph.put(BDDEngine.BDDTrue, createGraph());
     }
 
-    public void check(Collection<Integer> changedECs, Device newClosed, Map<Integer, Ports> ecToPorts, HashMap<Port, HashSet<Integer>> model) {
+    public void check(Collection<Long> changedECs, Device newClosed, Map<Long, Ports> ecToPorts, HashMap<Port, HashSet<Long>> model) {
         this.closed.add(newClosed);
         System.out.println("#closed: " + closed.size());
-        for (int ec : changedECs) {
+        for (long ec : changedECs) {
             ecToGraph.computeIfAbsent(ec, k -> createGraphForEC(ec, ecToPorts));
         }
 
         ecToGraph.keySet().removeIf(integer -> !changedECs.contains(integer));
-        for (int ec : changedECs) {
-            int tmp = bddEngine.and(ec, this.hs);
-            if (tmp == 0) {
+        for (long ec : changedECs) {
+            long tmp = bddEngine.and(ec, this.hs);
+            if (tmp == BDDEngine.BDDFalse) {
                 bddEngine.deRef(tmp);
                 continue;
             }
@@ -87,9 +87,9 @@ public class AllPairChecker {
         return connectedSet;
     }
 
-    private Graph<Device, PGEdge> createGraphForEC(int ec, Map<Integer, Ports> ecToPorts) {
-        for (int oldec : ecToGraph.keySet()) {
-            int tmp = bddEngine.or(ec, oldec);
+    private Graph<Device, PGEdge> createGraphForEC(long ec, Map<Long, Ports> ecToPorts) {
+        for (long oldec : ecToGraph.keySet()) {
+            long tmp = bddEngine.or(ec, oldec);
             if (tmp == oldec) {
                 bddEngine.deRef(tmp);
                 return (Graph<Device, PGEdge>) ((AbstractBaseGraph)(ecToGraph.get(oldec))).clone();
@@ -16,11 +16,11 @@ public class EarlyDetector {
     public boolean hasLoop = false;
     public boolean useSingleThread = false;
 
-    public void detectLoop(Setting setting, Network network, Set<Device> newClosed, Map<Port, HashSet<Number>> model) {
+    public void detectLoop(Setting setting, Network network, Set<Device> newClosed, Map<Port, ? extends Set<Number>> model) {
         this.detectLoop(setting, network, newClosed, model, null);
     }
 
-    public void detectLoop(Setting setting, Network network, Set<Device> newClosed, Map<Port, HashSet<Number>> model,
+    public void detectLoop(Setting setting, Network network, Set<Device> newClosed, Map<Port, ? extends Set<Number>> model,
             Set<Number> transfered) {
         this.closedDevices.addAll(newClosed);
         if (this.useSingleThread) {
@@ -52,16 +52,16 @@ class LoopDetector implements Runnable {
     private Network network;
     private Setting setting;
     public boolean hasLoop = false;
-    private Map<Port, HashSet<Number>> model;
+    private Map<Port, ? extends Set<Number>> model;
     private Set<Number> transfered;
 
     public LoopDetector(Setting setting, Network network, Set<Device> closed, Set<Device> newClosed,
-            Map<Port, HashSet<Number>> model) {
+            Map<Port, ? extends Set<Number>> model) {
         this(setting, network, closed, newClosed, model, null);
     }
 
     public LoopDetector(Setting setting, Network network, Set<Device> closed, Set<Device> newClosed,
-            Map<Port, HashSet<Number>> model, Set<Number> transfered) {
+            Map<Port, ? extends Set<Number>> model, Set<Number> transfered) {
         this.setting = setting;
         this.network = network;
         this.closed = closed;
@@ -80,7 +80,7 @@ class LoopDetector implements Runnable {
     }
 
     private void traverse(Device current, Set<Number> predicates, HashSet<Device> history,
-            Map<Port, HashSet<Number>> networkModel, Set<Device> closed) {
+            Map<Port, ? extends Set<Number>> networkModel, Set<Device> closed) {
         if (this.hasLoop)
             return;
         if (predicates != null && predicates.isEmpty())
@@ -108,7 +108,7 @@ class LoopDetector implements Runnable {
         }).collect(Collectors.toList())) {
             // if egress is default, alter blackhole
             Device t = egress.getPeerDevice();
-            HashSet<Number> labels = networkModel.get(egress), intersection;
+            Set<Number> labels = networkModel.get(egress), intersection;
             if (labels != null) {
                 if (predicates != null) {
                     intersection = new HashSet<>(predicates);
@@ -8,6 +8,7 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.snlab.evaluation.Main;
+import org.snlab.flash.BatchSizer;
 import org.snlab.flash.Dispatcher;
 import org.snlab.flash.ModelManager.ConflictFreeChanges;
 import org.snlab.flash.ModelManager.InverseModel;
@@ -23,6 +24,7 @@ public class EpochInstance {
     private BlockingQueue<Update> updateQueue = new LinkedBlockingQueue<>();
     public InverseModel model;
     private int batchSize;
+    private BatchSizer batchSizer; // null if the batch size is fixed
     private EarlyDetector earlyDetector = new EarlyDetector();
     private PropertyChecker propertyChecker = new PropertyChecker();
 
@@ -30,55 +32,84 @@ public class EpochInstance {
         this.epoch = epoch;
         this.network = network;
         this.model = new InverseModel(network);
+        Main.evalOptions.configure(model);
         this.batchSize = batchSize;
         earlyDetector.useSingleThread = true;
     }
 
+    /**
+     * Picks the batch sizes online by batchSizer, instead of a fixed one.
+     */
+    public EpochInstance(String epoch, Network network, BatchSizer batchSizer) {
+        this(epoch, network, 1);
+        this.batchSizer = batchSizer;
+    }
+
     public void addUpdate(Update update) {
         this.updateQueue.add(update);
+        if (batchSizer != null) batchSizer.arrived(1);
+    }
+
+    private int nextBatchSize() {
+        if (batchSizer != null) return batchSizer.next(updateQueue.size());
+        return updateQueue.size() >= batchSize ? batchSize : 0;
     }
 
     public void active() {
-        while (updateQueue.size() >= batchSize) {
-            List<Update> updates = new ArrayList<>();
-            updateQueue.drainTo(updates, batchSize);
+        for (int size = nextBatchSize(); size > 0; size = nextBatchSize()) verify(size);
+    }
 
-            List<Rule> insertions = new ArrayList<>();
-            List<Rule> deletions = new ArrayList<>();
-            for (Update update : updates) {
-                if (update.getMode() == Type.INSERT) {
-                    insertions.add(update.getRule());
-                } else {
-                    Rule rule = update.getDevice().getRule(update.getRule().getMatch(),
-                            update.getRule().getPrefix());
-                    deletions.add(rule);
-                }
+    /**
+     * Verifies all queued updates, whatever the batch size, e.g., before the model is forked.
+     */
+    public void flush() {
+        while (!updateQueue.isEmpty()) verify(updateQueue.size());
+    }
+
+    private void verify(int size) {
+        List<Update> updates = new ArrayList<>();
+        updateQueue.drainTo(updates, size);
+
+        List<Rule> insertions = new ArrayList<>();
+        List<Rule> deletions = new ArrayList<>();
+        for (Update update : updates) {
+            if (update.getMode() == Type.INSERT) {
+                insertions.add(update.getRule());
+            } else {
+                Rule rule = update.getDevice().getRule(update.getRule().getMatchHi(), update.getRule().getMatch(),
+                        update.getRule().getPrefix());
+                deletions.add(rule);
             }
-            ConflictFreeChanges cgs = model.miniBatch(insertions, deletions);
-            Set<Number> transfered = model.update(cgs);
+        }
+        long t0 = System.nanoTime();
+        ConflictFreeChanges cgs = model.miniBatch(insertions, deletions);
+        long t1 = System.nanoTime();
+        Set<Number> transfered = model.update(cgs);
+        if (batchSizer != null) batchSizer.record(updates.size(), t1 - t0, System.nanoTime() - t1);
 
-            if (Main.evalOptions.mode.equals("PUV") || Main.evalOptions.mode.equals("BUV")) {
+        if (Main.evalOptions.mode.equals("PUV") || Main.evalOptions.mode.equals("BUV")) {
 
-                if (this.epoch.equals(Main.evalOptions.checkEpoch) && transfered.size() > 0) {
-                    propertyChecker.checkLoop(network, model.getPortToPredicate(), transfered);
-                    if (propertyChecker.hasLoop) {
-                        Dispatcher.logger.logPrintln("Found loop using " + (batchSize > 1 ? "BUV" : "PUV") + " at time: "
-                                + (System.nanoTime() - Dispatcher.logger.startAt));
-                        // System.out.println(updates.get(updates.size() - 1).getDevice().getName());
-                        // System.out.println(updates.get(updates.size() - 1).getRule().getMatch());
-                        // break;
-                    }
+            if (this.epoch.equals(Main.evalOptions.checkEpoch) && transfered.size() > 0) {
+                propertyChecker.checkLoop(network, model.getPortToPredicate(), transfered);
+                if (propertyChecker.hasLoop) {
+                    Dispatcher.logger.logPrintln("Found loop using " + (batchSize > 1 || batchSizer != null ? "BUV" : "PUV") + " at time: "
+                            + (System.nanoTime() - Dispatcher.logger.startAt));
+                    // System.out.println(updates.get(updates.size() - 1).getDevice().getName());
+                    // System.out.println(updates.get(updates.size() - 1).getRule().getMatch());
+                    // break;
                 }
-            } else {
-                Setting setting = new Setting(0, 0, 0);
-                Set<Device> newClosed = new HashSet<>();
-                for (Update update : updates) {
-                    if (update.isIsLast()) {
-                        newClosed.add(update.getDevice());
-                    }
+            }
+        } else {
+            Setting setting = new Setting(0, 0, 0);
+            Set<Device> newClosed = new HashSet<>();
+            for (Update update : updates) {
+                if (update.isIsLast()) {
+                    newClosed.add(update.getDevice());
                 }
-                earlyDetector.detectLoop(setting, network, newClosed, model.getPortToPredicate(), null);
             }
+            // a detector on its own thread reads a snapshot, as the model goes on with the next batch
+            earlyDetector.detectLoop(setting, network, newClosed,
+                    earlyDetector.useSingleThread ? model.getPortToPredicate() : model.snapshotPortToPredicate(), null);
         }
     }
 }
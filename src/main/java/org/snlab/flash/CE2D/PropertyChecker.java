@@ -25,7 +25,7 @@ public class PropertyChecker {
     private BDDEngine bddEngine;
     private Network network;
     private Graph<Device, PGEdge> pg;
-    private int hs;
+    private long hs;
     private Set<Device> closed = new HashSet<>();
     private Map<Number, Graph<Device, PGEdge>> ecToPg = new HashMap<>();
     private Map<Number, ConnectivityInspector<Device, PGEdge>> ecToCI = new HashMap<>();
@@ -34,14 +34,14 @@ public class PropertyChecker {
     public PropertyChecker() {
     }
 
-    public void checkLoop(Network network, Map<Port, HashSet<Number>> model, Set<Number> transfered) {
+    public void checkLoop(Network network, Map<Port, ? extends Set<Number>> model, Set<Number> transfered) {
         for (Device device : network.getAllDevices()) {
             traverse(device, transfered, new HashSet<>(), model);
         }
     }
 
     private void traverse(Device current, Set<Number> predicates, HashSet<Device> history,
-            Map<Port, HashSet<Number>> networkModel) {
+            Map<Port, ? extends Set<Number>> networkModel) {
         if (this.hasLoop)
             return;
         if (current == null)
@@ -57,7 +57,7 @@ public class PropertyChecker {
         for (Port egress : current.getPorts()) {
             // if egress is default, alter blackhole
             Device t = egress.getPeerDevice();
-            HashSet<Number> labels = networkModel.get(egress), intersection;
+            Set<Number> labels = networkModel.get(egress), intersection;
             if (labels != null) {
                 if (predicates != null) {
                     intersection = new HashSet<>(predicates);
@@ -72,7 +72,7 @@ public class PropertyChecker {
         history.remove(current);
     }
 
-    public PropertyChecker(Network network, Graph<Device, PGEdge> pg, BDDEngine bddEngine, int hs) {
+    public PropertyChecker(Network network, Graph<Device, PGEdge> pg, BDDEngine bddEngine, long hs) {
         this.network = network;
         this.pg = pg;
         this.bddEngine = bddEngine;
@@ -88,8 +88,8 @@ public class PropertyChecker {
         }
 
         for (Number ec : ECs) {
-            if (bddEngine.and(ec.intValue(), hs) != 0) {
-                if (!ecToPg.containsKey(ec.intValue())) {
+            if (bddEngine.and(ec.longValue(), hs) != BDDEngine.BDDFalse) {
+                if (!ecToPg.containsKey(ec)) {
                     // create pg copy
                     Graph<Device, PGEdge> pg = clonePG();
                     // remove edges for closed switches
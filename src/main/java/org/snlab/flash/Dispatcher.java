@@ -27,6 +27,8 @@ public class Dispatcher {
     private BlockingQueue<Update> updateQueue = new LinkedBlockingQueue<>();
     private Map<String, EpochInstance> epochToInstance = new HashMap<>();
     private int batchSize = 1;
+    private long targetLatency = 0; // in ns, the batch sizes are picked online if positive (see BatchSizer)
+    private int maxBatchSize = 1000;
 
     public Dispatcher(Network network) {
         this(network, 1);
@@ -37,6 +39,15 @@ public class Dispatcher {
         this.batchSize = batchSize;
     }
 
+    /**
+     * Picks the batch size of every epoch online to meet the latency target, instead of the fixed batchSize.
+     * @param targetLatency in ns
+     */
+    public void setTargetLatency(long targetLatency, int maxBatchSize) {
+        this.targetLatency = targetLatency;
+        this.maxBatchSize = maxBatchSize;
+    }
+
     public void dispatch(Update update) {
         dispatch(Arrays.asList(update));
     }
@@ -46,13 +57,18 @@ public class Dispatcher {
         Set<EpochInstance> activeInstances = new HashSet<>();
         for (Update update : updates) {
             if (!epochToInstance.containsKey(update.getEpoch())) {
-                EpochInstance instance = new EpochInstance(update.getEpoch(), network, batchSize);
+                EpochInstance instance = targetLatency > 0
+                        ? new EpochInstance(update.getEpoch(), network, new BatchSizer(targetLatency, maxBatchSize))
+                        : new EpochInstance(update.getEpoch(), network, batchSize);
                 if (update.getEpoch().equals("1")) {
                     /**
-                     * only 2 epochs, the second epoch model cloned from the first, thus we can
-                     * directly apply updates to the first model
+                     * only 2 epochs, the second epoch model forked from the first, thus the updates of
+                     * the second epoch are applied on top of the first, without changing it;
+                     * the queued updates of the first are verified before, whatever its batch size
                      */
-                    instance.model = epochToInstance.get("0").model;
+                    EpochInstance first = epochToInstance.get("0");
+                    first.flush();
+                    instance.model = first.model.fork();
                 }
                 epochToInstance.put(update.getEpoch(), instance);
             }
@@ -65,4 +81,12 @@ public class Dispatcher {
             instance.active();
         }
     }
+
+    /**
+     * Verifies the updates still queued in every epoch, whatever the batch size, e.g., at the end of the stream, since a
+     * batch short of its size is only taken once more updates arrive.
+     */
+    public void flush() {
+        for (EpochInstance instance : epochToInstance.values()) instance.flush();
+    }
 }
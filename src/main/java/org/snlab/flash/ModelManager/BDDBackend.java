@@ -0,0 +1,144 @@
+package org.snlab.flash.ModelManager;
+
+/**
+ * The node-level operations a BDD package has to provide to BDDEngine.
+ *
+ * Nodes are primitive long handles where 0 and 1 are the two terminals (BDDEngine.BDDFalse and BDDEngine.BDDTrue);
+ * a backend whose terminals are numbered differently translates them at this boundary.
+ * Every operation returns an unreferenced node, the caller refs it if it is kept across operations.
+ */
+public interface BDDBackend {
+    enum Type {
+        JDD, NANO, JAVA
+    }
+
+    /**
+     * @param type   which BDD package to use
+     * @param varNum the number of variables
+     */
+    static BDDBackend create(Type type, int varNum) {
+        return create(type, varNum, BDDSizing.DEFAULT);
+    }
+
+    /**
+     * @param sizing the initial sizes of the node table and the operation cache, e.g., BDDSizing.of(network)
+     */
+    static BDDBackend create(Type type, int varNum, BDDSizing sizing) {
+        switch (type) {
+            case NANO:
+                return sizing.isDefault() ? new NanoBDDBackend(varNum) : new NanoBDDBackend(sizing.getNodes(), sizing.getCache(), varNum);
+            case JAVA:
+                if (sizing.isDefault()) return new ConcurrentBDD(1 << 20, 1 << 20, varNum);
+                ConcurrentBDD ret = new ConcurrentBDD(sizing.getNodes(), sizing.getCache(), varNum);
+                ret.reserve(sizing.getNodes());
+                return ret;
+            default:
+                return sizing.isDefault() ? new JDDBackend(varNum) : new JDDBackend(sizing.getNodes(), sizing.getCache(), varNum);
+        }
+    }
+
+    /**
+     * @return a referenced node of the i-th variable
+     */
+    long var(int i);
+
+    /**
+     * @return a referenced node of the negation of the i-th variable
+     */
+    long nvar(int i);
+
+    long and(long a, long b);
+
+    long or(long a, long b);
+
+    long not(long a);
+
+    /**
+     * @return a and (not b)
+     */
+    long diff(long a, long b);
+
+    long ref(long a);
+
+    /**
+     * The structure of a node, e.g., to write it to a checkpoint; only defined on non-terminals.
+     * @return the index of the variable of the node
+     */
+    default int getVar(long a) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not expose its nodes");
+    }
+
+    default long getLow(long a) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not expose its nodes");
+    }
+
+    default long getHigh(long a) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not expose its nodes");
+    }
+
+    /**
+     * @return whether getVar, getLow and getHigh are defined
+     */
+    default boolean exposesNodes() {
+        return false;
+    }
+
+    /**
+     * @param v    a variable above all variables of low and high
+     * @return the node (v ? high : low), i.e., (v and high) or (not v and low)
+     */
+    default long mk(int v, long low, long high) {
+        long x = var(v), hi = ref(and(x, high));
+        deRef(x);
+        x = nvar(v);
+        long lo = ref(and(x, low));
+        deRef(x);
+        long ret = or(hi, lo);
+        deRef(hi);
+        deRef(lo);
+        return ret;
+    }
+
+    void deRef(long a);
+
+    /**
+     * @return whether operations can be issued by multiple threads at the same time
+     */
+    boolean isThreadSafe();
+
+    /**
+     * Gives the backend a chance to reclaim dead nodes, only invoked when no operation is in flight.
+     * A no-op by default, for packages (e.g., JDD) that already collect by themselves when their table is full.
+     */
+    default void maybeGc() {
+    }
+
+    /**
+     * Collects garbage right away, only invoked when no operation is in flight.
+     * @return the number of live nodes, -1 if the package does not count them (e.g., JDD) or only collects by itself
+     */
+    default int gc() {
+        return -1;
+    }
+
+    /**
+     * @return the number of nodes the table can hold without growing, -1 if the package does not expose it
+     */
+    default long getCapacity() {
+        return -1;
+    }
+
+    /**
+     * @return how many times the node table (or its unique table) has grown, -1 if the package does not expose it
+     */
+    default int getGrowCount() {
+        return -1;
+    }
+
+    /**
+     * @return how many times garbage has been collected, -1 if the package does not expose it
+     */
+    default int getGcCount() {
+        return -1;
+    }
+}
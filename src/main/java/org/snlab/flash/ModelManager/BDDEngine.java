@@ -1,146 +1,482 @@
 package org.snlab.flash.ModelManager;
 
-import jdd.bdd.BDD;
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-class TrieCode {
-    int result;
-    TrieCode left, right, skip; // left: 1, right: 0
+import org.snlab.network.FieldMatch;
+import org.snlab.network.Rule;
 
-    public TrieCode(int result) {
-        this.result = result;
-        this.left = this.right = null;
+/**
+ * All BDD operations should be encapsulated in this Class.
+ * The BDD package behind it is pluggable (see BDDBackend), nodes are always long handles.
+ *
+ * Optionally (see useIntervals), predicates are interval sets on the destination while every encoded match is a
+ * destination prefix; the first match on another field moves the engine to BDDs, and interval handles which are still
+ * held are translated on their next use.
+ */
+public final class BDDEngine {
+    public final static long BDDFalse = 0;
+    public final static long BDDTrue = 1;
+    private final static int PARALLEL_OR = 64; // the smallest n-ary union split across threads
+
+    /**
+     * When garbage is collected at the end of a batch (packages like JDD also collect by themselves when their table is full,
+     * which a BDDSizing large enough avoids).
+     * AUTO lets the package decide (e.g., once its table has doubled, or only when it is full on JDD), BATCH collects after
+     * every batch, NONE never asks.
+     */
+    public enum GcPolicy {
+        AUTO, BATCH, NONE
+    }
+
+    private final BDDBackend bdd;
+    private final HeaderSchema schema;
+    private final HashMap<String, PrefixCode> codes; // one cached encoder per header field
+    private final PrefixCode dst;
+    private final int size;
+    private GcPolicy gcPolicy = GcPolicy.AUTO;
+    private IntervalSets intervals = null; // non-null once interval sets have been enabled
+    private boolean onIntervals = false;
+    // held (shared) by every model in a run of operations, so maybeGc never reclaims the unreferenced intermediate nodes
+    // of another model on this engine (e.g., a fork), see beginOperations
+    private final ReentrantReadWriteLock gcLock = new ReentrantReadWriteLock();
+
+    public double opCnt; // approximate while operations run in parallel
+
+    public BDDEngine(int size) {
+        this(size, BDDBackend.Type.JDD);
+    }
+
+    public BDDEngine(int size, BDDBackend.Type type) {
+        this(HeaderSchema.of(size), type);
+    }
+
+    public BDDEngine(int size, BDDBackend bdd) {
+        this(HeaderSchema.of(size), bdd);
     }
 
-    public TrieCode buildLeft(BDD bdd, int var) {
-        if (this.left == null) {
-            this.left = new TrieCode(bdd.ref(bdd.and(result, var)));
+    public BDDEngine(HeaderSchema schema, BDDBackend.Type type) {
+        this(schema, BDDBackend.create(type, schema.getVarNum()));
+    }
+
+    public BDDEngine(HeaderSchema schema, BDDBackend.Type type, BDDSizing sizing) {
+        this(schema, BDDBackend.create(type, schema.getVarNum(), sizing));
+    }
+
+    /**
+     * bdd variable array follows the schema, i.e., every field is a run of variables from its high bit to its low bit.
+     */
+    public BDDEngine(HeaderSchema schema, BDDBackend bdd) {
+        this.opCnt = 0;
+        this.schema = schema;
+        this.size = schema.getWidth(HeaderSchema.DST);
+        this.bdd = bdd;
+        this.codes = new HashMap<>();
+        for (String field : schema.getFields()) {
+            int offset = schema.getOffset(field), width = schema.getWidth(field);
+            long[] vars = new long[width], nVars = new long[width];
+            for (int i = 0; i < width; i++) {
+                vars[i] = bdd.var(offset + i);
+                nVars[i] = bdd.nvar(offset + i);
+            }
+            codes.put(field, new PrefixCode(bdd, vars, nVars));
         }
-        return this.left;
+        this.dst = codes.get(HeaderSchema.DST);
     }
 
-    public TrieCode buildRight(BDD bdd, int nVar) {
-        if (this.right == null) {
-            this.right = new TrieCode(bdd.ref(bdd.and(result, nVar)));
+    /**
+     * The prefix of a rule is relative to its width, so a rule has to be as wide as the destination, except the empty
+     * prefix (e.g., a default rule), which matches all destinations whatever the width; see IndexedRules.dstLength.
+     * @return the referenced match of the rule, the conjunction of the matches on all its fields
+     */
+    public long encode(Rule rule) {
+        if (rule.getWidth() != size && rule.getPrefix() != 0)
+            throw new IllegalArgumentException("Rule of " + rule.getWidth() + " destination bits on " + size + " destination bits");
+        if (onIntervals) {
+            if (rule.getSrcSuffix() == 0 && rule.getFields().isEmpty()) return intervals.ref(intervals.prefix(rule.getMatch(), rule.getPrefix()));
+            leaveIntervals();
+        }
+        long ret = dst.encode(rule.getMatchHi(), rule.getMatch(), rule.getPrefix());
+        if (rule.getSrcSuffix() > 0) ret = andAndRelease(ret, encodeSuffix(HeaderSchema.SRC, rule.getSrc(), rule.getSrcSuffix()));
+        for (FieldMatch m : rule.getFields()) {
+            ret = andAndRelease(ret, m.isRange() ? encodeRange(m.getField(), m.getLo(), m.getHi())
+                    : encodeField(m.getField(), m.getValueHi(), m.getValue(), m.getPrefix()));
         }
-        return this.right;
+        return ret;
     }
 
-    public  TrieCode buildSkip() {
-        if (this.skip == null) this.skip = new TrieCode(BDDEngine.BDDTrue);
-        return this.skip;
+    /**
+     * Conjunction consuming both (referenced) operands.
+     */
+    private long andAndRelease(long a, long b) {
+        long ret = bdd.ref(bdd.and(a, b));
+        bdd.deRef(a);
+        bdd.deRef(b);
+        return ret;
     }
-}
 
-/**
- * All BDD operations should be encapsulated in this Class.
- */
-public final class BDDEngine {
-    public final static int BDDFalse = 0;
-    public final static int BDDTrue = 1;
+    /**
+     * Represents predicates as interval sets until a match on another field than the destination is encoded.
+     * Must be called before any predicate is encoded, and only for destinations of at most 62 bits (e.g., IPv4).
+     */
+    public void useIntervals() {
+        if (size > 62) throw new IllegalArgumentException("Interval sets on " + size + " destination bits");
+        if (intervals == null) intervals = new IntervalSets(bdd, dst, size);
+        onIntervals = true;
+    }
 
-    private final BDD bdd;
-    private final int[] vars, nVars, svars, snVars;
-    private final TrieCode dst, src;
-    private int size;
+    /**
+     * @return whether predicates are still interval sets
+     */
+    public boolean isOnIntervals() {
+        return onIntervals;
+    }
 
-    public double opCnt;
+    private void leaveIntervals() {
+        onIntervals = false;
+    }
 
-    // bdd variable array is from high bit to low bit
-    public BDDEngine(int size) {
-        this.opCnt = 0;
-        this.size = size;
-        this.bdd = new BDD(1000, 10000);
-        this.vars = new int[size];
-        this.nVars = new int[size];
-        for (int i = 0; i < size; i++) {
-            vars[i] = bdd.createVar();
-            nVars[i] = bdd.ref(bdd.not(vars[i]));
+    /**
+     * @return the BDD of a handle, which is an interval set if negative
+     */
+    private long toBdd(long a) {
+        return a < 0 ? intervals.toBdd(a) : a;
+    }
+
+    /**
+     * Handles of the two representations are not comparable, a holder which compares handles moves them to BDDs
+     * once the engine has left interval sets.
+     * @return the referenced BDD of the handle
+     */
+    public long asBdd(long a) {
+        return bdd.ref(toBdd(a));
+    }
+
+    private PrefixCode code(String field) {
+        PrefixCode ret = codes.get(field);
+        if (ret == null) throw new IllegalArgumentException("Unknown header field " + field + " in schema " + schema);
+        return ret;
+    }
+
+    public long encodeIpv4(long ip, int prefix) {
+        if (onIntervals) return intervals.ref(intervals.prefix(ip, prefix));
+        return dst.encode(0, ip, prefix);
+    }
+
+    public long encodeIpv4(long ip, int prefix, int srcIp, int srcSuffix) {
+        leaveIntervals();
+        return andAndRelease(dst.encode(0, ip, prefix), encodeSuffix(HeaderSchema.SRC, srcIp, srcSuffix));
+    }
+
+    /**
+     * @param hi the high 64 bits of a 128-bit (IPv6) destination, which are zeros for IPv4
+     * @param lo the low 64 bits of the destination
+     */
+    public long encodeIpv6(long hi, long lo, int prefix) {
+        if (onIntervals) return intervals.ref(intervals.prefix(lo, prefix)); // hi is empty for at most 62 bits
+        return dst.encode(hi, lo, prefix);
+    }
+
+    /**
+     * @return the referenced prefix-match on the field, the value is right-aligned in hi:lo
+     */
+    public long encodeField(String field, long hi, long lo, int prefix) {
+        if (onIntervals && field.equals(HeaderSchema.DST)) return intervals.ref(intervals.prefix(lo, prefix));
+        leaveIntervals();
+        return code(field).encode(hi, lo, prefix);
+    }
+
+    public long encodeField(String field, long value, int prefix) {
+        return encodeField(field, 0, value, prefix);
+    }
+
+    /**
+     * The suffix-match takes the i-th lowest bit as the i-th variable, i.e., a prefix-match on the reversed bits.
+     */
+    public long encodeSuffix(String field, long value, int suffix) {
+        int width = schema.getWidth(field);
+        if (width > 64) throw new IllegalArgumentException("Suffix-match on field " + field + " wider than 64 bits");
+        leaveIntervals();
+        return code(field).encode(0, Long.reverse(value) >>> (64 - width), suffix);
+    }
+
+    /**
+     * Splits [lo, hi] into maximal aligned blocks, each of which is a cached prefix-match, e.g., for L4 port ranges.
+     * @return the referenced match of values in [lo, hi] on the field (at most 62 bits)
+     */
+    public long encodeRange(String field, long lo, long hi) {
+        int width = schema.getWidth(field);
+        if (width > 62) throw new IllegalArgumentException("Range-match on field " + field + " wider than 62 bits");
+        PrefixCode code = code(field);
+        leaveIntervals();
+        return code.encodeRange(lo, hi);
+    }
+
+    public long not(long a) {
+        opCnt ++;
+        if (onIntervals) return intervals.ref(intervals.not(a));
+        return bdd.ref(bdd.not(toBdd(a)));
+    }
+
+    public long and(long a, long b) {
+        opCnt ++;
+        if (onIntervals) return intervals.ref(intervals.and(a, b));
+        return bdd.ref(bdd.and(toBdd(a), toBdd(b)));
+    }
+
+    public long or(long a, long b) {
+        opCnt ++;
+        if (onIntervals) return intervals.ref(intervals.or(a, b));
+        return bdd.ref(bdd.or(toBdd(a), toBdd(b)));
+    }
+
+    /**
+     * The union of many predicates as a balanced tree of ors, instead of a left-deep chain whose
+     * accumulator grows with every operand; the two halves run in parallel if the backend allows it.
+     * @param preds referenced predicates, which are consumed
+     * @return the referenced union
+     */
+    public long orAll(List<? extends Number> preds) {
+        if (preds.isEmpty()) return BDDFalse;
+        opCnt += preds.size() - 1;
+        if (isThreadSafe() && preds.size() >= PARALLEL_OR) return ForkJoinPool.commonPool().invoke(new OrTask(preds, 0, preds.size()));
+        return orAll(preds, 0, preds.size());
+    }
+
+    private long orAll(List<? extends Number> preds, int l, int r) {
+        if (r - l == 1) return preds.get(l).longValue();
+        int m = (l + r) >>> 1;
+        return union(orAll(preds, l, m), orAll(preds, m, r));
+    }
+
+    /**
+     * Or consuming both (referenced) operands, without counting the operation.
+     */
+    private long union(long a, long b) {
+        long ret = onIntervals ? intervals.ref(intervals.or(a, b)) : bdd.ref(bdd.or(toBdd(a), toBdd(b)));
+        deRef(a);
+        deRef(b);
+        return ret;
+    }
+
+    private final class OrTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends Number> preds;
+        private final int l, r;
+
+        OrTask(List<? extends Number> preds, int l, int r) {
+            this.preds = preds;
+            this.l = l;
+            this.r = r;
         }
-        this.svars = new int[8];
-        this.snVars = new int[8];
-        for (int i = 0; i < 8; i++) {
-            svars[i] = bdd.createVar();
-            snVars[i] = bdd.ref(bdd.not(svars[i]));
+
+        @Override
+        protected Long compute() {
+            if (r - l < PARALLEL_OR) return orAll(preds, l, r);
+            int m = (l + r) >>> 1;
+            OrTask left = new OrTask(preds, l, m);
+            left.fork();
+            long b = new OrTask(preds, m, r).compute();
+            return union(left.join(), b);
         }
-        this.dst = new TrieCode(BDDTrue);
-        this.src = new TrieCode(BDDTrue);
     }
 
-    public int encodeIpv4(BigInteger ip, int prefix) {
-        TrieCode ret = dst;
-        for (int i = 0; i < prefix; i++) {
-            if (ip.testBit(size - 1 - i)) {
-                ret = ret.buildLeft(this.bdd, vars[i]);
-            } else {
-                ret = ret.buildRight(this.bdd, nVars[i]);
-            }
+    public long diff(long a, long b) {
+        opCnt += 2;
+        if (onIntervals) return intervals.ref(intervals.diff(a, b));
+        return bdd.ref(bdd.diff(toBdd(a), toBdd(b)));
+    }
+
+    /**
+     * The structure of a BDD node (not a terminal), see BDDBackend.getVar.
+     */
+    public int getVar(long a) {
+        return bdd.getVar(a);
+    }
+
+    public long getLow(long a) {
+        return bdd.getLow(a);
+    }
+
+    public long getHigh(long a) {
+        return bdd.getHigh(a);
+    }
+
+    /**
+     * @param skip the number of leading destination bits which are ignored
+     * @param bits the number of destination bits after them, skip + bits is at most the destination width
+     * @return the values of those bits of the destination (buckets) which some header in a takes,
+     *         null if a is a BDD of a package which does not expose its nodes
+     */
+    public BitSet dstBuckets(long a, int skip, int bits) {
+        BitSet ret = new BitSet(1 << bits);
+        if (a == BDDFalse) return ret;
+        if (a == BDDTrue) {
+            ret.set(0, 1 << bits);
+            return ret;
+        }
+        if (a < 0) {
+            intervals.buckets(a, skip, bits, ret);
+            return ret;
         }
-        return bdd.ref(ret.result);
+        if (!bdd.exposesNodes()) return null;
+        List<HashMap<Long, BitSet>> memo = new ArrayList<>(bits + 1);
+        for (int i = 0; i <= bits; i++) memo.add(new HashMap<>());
+        return buckets(a, 0, bits, schema.getOffset(HeaderSchema.DST) + skip, memo);
     }
 
-    public int encodeIpv4(BigInteger ip, int prefix, int srcIp, int srcSuffix) {
-        TrieCode ret = dst;
-        for (int i = 0; i < prefix; i++) {
-            if (ip.testBit(size - 1 - i)) {
-                ret = ret.buildLeft(this.bdd, vars[i]);
-            } else {
-                ret = ret.buildRight(this.bdd, nVars[i]);
-            }
+    /**
+     * @param offset the variable of the first bit of the buckets
+     * @param depth  the number of bits of the buckets fixed on the way to a
+     * @return the buckets of a relative to the fixed bits, i.e., values of the following (bits - depth) bits
+     */
+    private BitSet buckets(long a, int depth, int bits, int offset, List<HashMap<Long, BitSet>> memo) {
+        BitSet ret = memo.get(depth).get(a);
+        if (ret != null) return ret;
+        int n = 1 << (bits - depth);
+        ret = new BitSet(n);
+        if (a == BDDFalse) return ret;
+        int v = a == BDDTrue ? Integer.MAX_VALUE : bdd.getVar(a);
+        if (v < offset) { // a variable above the buckets, e.g., of a field above the destination
+            ret.or(buckets(bdd.getLow(a), depth, bits, offset, memo));
+            ret.or(buckets(bdd.getHigh(a), depth, bits, offset, memo));
+        } else if (depth == bits || v >= offset + bits) { // below the leading bits, thus not empty
+            ret.set(0, n);
+        } else if (v > offset + depth) { // the bit is a wildcard
+            BitSet t = buckets(a, depth + 1, bits, offset, memo);
+            ret.or(t);
+            for (int i = t.nextSetBit(0); i >= 0; i = t.nextSetBit(i + 1)) ret.set(n / 2 + i);
+        } else {
+            ret.or(buckets(bdd.getLow(a), depth + 1, bits, offset, memo));
+            BitSet t = buckets(bdd.getHigh(a), depth + 1, bits, offset, memo);
+            for (int i = t.nextSetBit(0); i >= 0; i = t.nextSetBit(i + 1)) ret.set(n / 2 + i);
         }
+        memo.get(depth).put(a, ret);
+        return ret;
+    }
 
-        TrieCode tmp = src;
-        for (int i = 0; i < srcSuffix; i ++) {
-            if (((srcIp >> i) & 1) == 1) {
-                tmp = tmp.buildLeft(this.bdd, svars[i]);
-            } else {
-                tmp = tmp.buildRight(this.bdd, snVars[i]);
-            }
+    /**
+     * @return the referenced node (v ? high : low), where v is above all variables of low and high
+     */
+    public long mk(int v, long low, long high) {
+        return bdd.ref(bdd.mk(v, low, high));
+    }
+
+    public long ref(long a) {
+        return a < 0 ? intervals.ref(a) : bdd.ref(a);
+    }
+
+    public void deRef(long a) {
+        if (a < 0) intervals.deRef(a);
+        else bdd.deRef(a);
+    }
+
+    /**
+     * @return whether BDD operations (not the encoding) can be issued by multiple threads at the same time
+     */
+    public boolean isThreadSafe() {
+        return bdd.isThreadSafe() && intervals == null;
+    }
+
+    /**
+     * Marks a run of operations of a model (e.g., a miniBatch or an update), during which maybeGc by any other model on
+     * this engine is skipped; must be ended by endOperations on the same thread.
+     */
+    public void beginOperations() {
+        gcLock.readLock().lock();
+    }
+
+    public void endOperations() {
+        gcLock.readLock().unlock();
+    }
+
+    /**
+     * Must be called when no BDD operation of the caller is in flight, e.g., at the end of a batch; skipped while another
+     * model is in a run of operations (see beginOperations), which then collects at the end of its own batch.
+     */
+    public void maybeGc() {
+        if (!gcLock.writeLock().tryLock()) return;
+        try {
+            gc();
+        } finally {
+            gcLock.writeLock().unlock();
         }
+    }
 
-        return bdd.ref(bdd.and(ret.result, tmp.result));
+    private void gc() {
+        if (intervals != null) intervals.sweep();
+        switch (gcPolicy) {
+            case BATCH:
+                bdd.gc();
+                break;
+            case AUTO:
+                bdd.maybeGc();
+                break;
+            default:
+        }
     }
 
-    public static int refCnt = 0, defCnt = 0;
-    public static double tot;
+    public void setGcPolicy(GcPolicy gcPolicy) {
+        this.gcPolicy = gcPolicy;
+    }
 
-    public int not(int a) {
-        opCnt ++;
-        return bdd.ref(bdd.not(a));
+    /**
+     * @return the telemetry of the node table, -1 for what the package does not expose
+     */
+    public String getTableStats() {
+        return "capacity: " + bdd.getCapacity() + ", grows: " + bdd.getGrowCount() + ", gcs: " + bdd.getGcCount();
     }
 
-    public int and(int a, int b) {
-        opCnt ++;
-        return bdd.ref(bdd.and(a, b));
+    /**
+     * @return the number of destination bits
+     */
+    public int getSize() {
+        return size;
     }
 
-    public int or(int a, int b) {
-        opCnt ++;
-        return bdd.ref(bdd.or(a, b));
+    /**
+     * Bounds the number of prefixes memoized by the encoder of every field, 0 (the default) for unbounded.
+     * Evicted BDDs are released, so long-running churn does not pin every prefix ever encoded.
+     */
+    public void setEncodingCacheLimit(int limit) {
+        for (PrefixCode code : codes.values()) code.setLimit(limit);
     }
 
-    public int diff(int a, int b) {
-        opCnt += 2;
-        int tmp = bdd.ref(bdd.not(b));
-        int ret = bdd.ref(bdd.and(a, tmp));
-        bdd.deref(tmp);
+    /**
+     * @return the number of encodings served by the caches, summed over all fields
+     */
+    public long getEncodingCacheHits() {
+        long ret = 0;
+        for (PrefixCode code : codes.values()) ret += code.getHits();
         return ret;
     }
 
-    public int ref(int a) {
-        return bdd.ref(a);
+    public long getEncodingCacheMisses() {
+        long ret = 0;
+        for (PrefixCode code : codes.values()) ret += code.getMisses();
+        return ret;
     }
 
-    public void deRef(int a) {
-        bdd.deref(a);
+    /**
+     * @return the number of prefixes currently memoized, summed over all fields
+     */
+    public int getEncodingCacheSize() {
+        int ret = 0;
+        for (PrefixCode code : codes.values()) ret += code.size();
+        return ret;
     }
 
-    public int xor(int a, int b) {
-        opCnt ++;
-        return bdd.ref(bdd.xor(a, b));
+    public HeaderSchema getSchema() {
+        return schema;
     }
 
-    public BDD getBdd() {
+    public BDDBackend getBackend() {
         return bdd;
     }
-}
\ No newline at end of file
+}
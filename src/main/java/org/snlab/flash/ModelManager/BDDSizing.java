@@ -0,0 +1,75 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.Collection;
+
+import org.snlab.network.Network;
+import org.snlab.network.Rule;
+
+/**
+ * The initial sizes of the node table and the operation cache of a BDD package.
+ *
+ * Estimated from the dataset (the rule count and the prefix-length histogram), so that loading a large snapshot
+ * neither regrows the node table many times nor collects garbage in the middle of the first batches.
+ */
+public final class BDDSizing {
+    /**
+     * Leaves every package with its own (small) defaults.
+     */
+    public static final BDDSizing DEFAULT = new BDDSizing(0, 0);
+
+    private static final int MIN_NODES = 10_000, MAX_NODES = 1 << 26;
+
+    private final int nodes, cache;
+
+    public BDDSizing(int nodes, int cache) {
+        this.nodes = nodes;
+        this.cache = cache;
+    }
+
+    public static BDDSizing of(Network network) {
+        return of(network.getInitialRules());
+    }
+
+    /**
+     * A rule with prefix length l is a cube of l nodes, and splitting ECs by it creates up to about as many nodes again.
+     * So the table is sized to twice the total prefix length (plus the other fields), and the cache to a quarter of it.
+     */
+    public static BDDSizing of(Collection<Rule> rules) {
+        if (rules.isEmpty()) return DEFAULT;
+
+        long[] histogram = new long[129]; // the number of rules per destination prefix length
+        long others = 0; // the number of literals on the other fields
+        for (Rule rule : rules) {
+            histogram[Math.min(Math.max(rule.getPrefix(), 0), 128)]++;
+            others += rule.getSrcSuffix() + 16L * rule.getFields().size();
+        }
+        long literals = others;
+        for (int len = 0; len <= 128; len++) literals += histogram[len] * len;
+
+        int nodes = (int) Math.min(Math.max(2 * literals, MIN_NODES), MAX_NODES);
+        return new BDDSizing(nodes, Math.max(nodes / 4, MIN_NODES));
+    }
+
+    public boolean isDefault() {
+        return nodes == 0;
+    }
+
+    /**
+     * @return the expected number of nodes
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the number of entries of the operation cache
+     */
+    public int getCache() {
+        return cache;
+    }
+
+    @Override
+    public String toString() {
+        return isDefault() ? "default" : "nodes: " + nodes + ", cache: " + cache;
+    }
+}
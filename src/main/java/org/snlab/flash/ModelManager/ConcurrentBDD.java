@@ -0,0 +1,442 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A pure-Java BDD package which can be shared by multiple threads, i.e., a drop-in for the native NanoBDD.
+ *
+ * Nodes live in fixed-size chunks, so the node table grows without copying and without blocking readers.
+ * The unique table is an array of lock-free linked lists (a node is published by a CAS on its bucket head),
+ * and the operation cache is a lossy seqlock-protected array. Both never allocate on the hot path.
+ *
+ * Notice operations never collect garbage by themselves: intermediate results are not referenced, so gc()
+ * must only be called when no operation is in flight (e.g., between two batches).
+ */
+public final class ConcurrentBDD implements BDDBackend {
+    public static final int FALSE = 0, TRUE = 1;
+
+    private static final int CHUNK_BITS = 16, CHUNK = 1 << CHUNK_BITS, CHUNK_MASK = CHUNK - 1;
+    private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS); // node ids fit in 31 bits (see cache keys)
+    private static final long OP_AND = 0, OP_OR = 1, OP_DIFF = 2, OP_NOT = 3;
+    private static final long NO_KEY = -1L; // never a valid key since not(a) always has b = 0
+
+    private final int varNum;
+
+    // node i is stored at (i >>> CHUNK_BITS, i & CHUNK_MASK)
+    private final int[][] vars, lows, highs, nexts;
+    private final AtomicIntegerArray[] refs;
+    private final AtomicInteger nodeCnt;
+    private volatile int chunkCnt;
+
+    // heads of the lock-free lists, 0 (i.e., FALSE which is never linked) terminates a list
+    private volatile AtomicIntegerArray buckets;
+
+    // ids reclaimed by the last gc(), popped by allocations
+    private int[] free;
+    private final AtomicInteger freeTop;
+    private int liveAfterGc;
+
+    // every entry takes 3 slots: stamp (odd while being written), key, result
+    private final AtomicLongArray cache;
+    private final int cacheMask;
+
+    public int gcCnt = 0;
+    private int growCnt = 0, reserved = CHUNK;
+
+    /**
+     * @param tableSize the initial number of lists in the unique table (grows in gc())
+     * @param cacheSize the number of entries in the operation cache (rounded up to a power of 2)
+     * @param varNum    the number of variables
+     */
+    public ConcurrentBDD(int tableSize, int cacheSize, int varNum) {
+        this.varNum = varNum;
+        this.vars = new int[MAX_CHUNKS][];
+        this.lows = new int[MAX_CHUNKS][];
+        this.highs = new int[MAX_CHUNKS][];
+        this.nexts = new int[MAX_CHUNKS][];
+        this.refs = new AtomicIntegerArray[MAX_CHUNKS];
+        this.buckets = new AtomicIntegerArray(powerOfTwo(tableSize));
+        this.free = new int[0];
+        this.freeTop = new AtomicInteger(0);
+
+        int entries = powerOfTwo(cacheSize);
+        this.cacheMask = entries - 1;
+        this.cache = new AtomicLongArray(3 * entries);
+        for (int i = 0; i < entries; i++) cache.set(3 * i + 1, NO_KEY);
+
+        // the two terminals take the ids 0 and 1, their variable is below all real variables
+        ensureChunk(0);
+        this.nodeCnt = new AtomicInteger(2);
+        vars[0][FALSE] = vars[0][TRUE] = varNum;
+    }
+
+    private static int powerOfTwo(int n) {
+        int ret = 1;
+        while (ret < n && ret < (1 << 30)) ret <<= 1;
+        return ret;
+    }
+
+    private void ensureChunk(int c) {
+        if (c < chunkCnt) return;
+        synchronized (this.vars) {
+            for (int i = chunkCnt; i <= c; i++) {
+                vars[i] = new int[CHUNK];
+                lows[i] = new int[CHUNK];
+                highs[i] = new int[CHUNK];
+                nexts[i] = new int[CHUNK];
+                refs[i] = new AtomicIntegerArray(CHUNK);
+            }
+            if (c >= chunkCnt) {
+                if (chunkCnt * CHUNK >= reserved) growCnt++;
+                chunkCnt = c + 1; // publishes the chunks above
+            }
+        }
+    }
+
+    /**
+     * Allocates the chunks for the expected number of nodes up front, and defers gc() until the table outgrows them.
+     */
+    public void reserve(int nodes) {
+        nodes = Math.min(Math.max(nodes, CHUNK), MAX_CHUNKS * CHUNK - 1);
+        this.reserved = Math.max(this.reserved, nodes);
+        ensureChunk((nodes - 1) >>> CHUNK_BITS);
+    }
+
+    public long getFalse() {
+        return FALSE;
+    }
+
+    public long getTrue() {
+        return TRUE;
+    }
+
+    public int getVarNum() {
+        return varNum;
+    }
+
+    @Override
+    public long var(int i) {
+        return ref(mk(i, FALSE, TRUE));
+    }
+
+    @Override
+    public long nvar(int i) {
+        return ref(mk(i, TRUE, FALSE));
+    }
+
+    @Override
+    public long ref(long a) {
+        int n = (int) a;
+        if (n > TRUE) refs[n >>> CHUNK_BITS].incrementAndGet(n & CHUNK_MASK);
+        return a;
+    }
+
+    /**
+     * Releasing an unreferenced node (e.g., twice) is a bug of the caller, caught when assertions are enabled.
+     */
+    @Override
+    public void deRef(long a) {
+        int n = (int) a;
+        if (n <= TRUE) return;
+        int r = refs[n >>> CHUNK_BITS].getAndUpdate(n & CHUNK_MASK, x -> x > 0 ? x - 1 : 0);
+        assert r > 0 : "Released the unreferenced node " + n;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean exposesNodes() {
+        return true;
+    }
+
+    @Override
+    public int getVar(long a) {
+        return getVar((int) a);
+    }
+
+    @Override
+    public long getLow(long a) {
+        return getLow((int) a);
+    }
+
+    @Override
+    public long getHigh(long a) {
+        return getHigh((int) a);
+    }
+
+    @Override
+    public long mk(int v, long low, long high) {
+        return mk(v, (int) low, (int) high);
+    }
+
+    public int getVar(int n) {
+        return vars[n >>> CHUNK_BITS][n & CHUNK_MASK];
+    }
+
+    public int getLow(int n) {
+        return lows[n >>> CHUNK_BITS][n & CHUNK_MASK];
+    }
+
+    public int getHigh(int n) {
+        return highs[n >>> CHUNK_BITS][n & CHUNK_MASK];
+    }
+
+    private int getNext(int n) {
+        return nexts[n >>> CHUNK_BITS][n & CHUNK_MASK];
+    }
+
+    private int allocate() {
+        if (freeTop.get() > 0) {
+            int top = freeTop.getAndDecrement();
+            if (top > 0) return free[top - 1];
+        }
+        int id = nodeCnt.getAndIncrement();
+        if (id < 0 || (id >>> CHUNK_BITS) >= MAX_CHUNKS) throw new IllegalStateException("BDD node table is full");
+        ensureChunk(id >>> CHUNK_BITS);
+        return id;
+    }
+
+    private static int hash(int v, int lo, int hi) {
+        int h = v * 0x9E3779B9 + lo;
+        h = h * 0x85EBCA6B + hi;
+        return h ^ (h >>> 15);
+    }
+
+    private boolean matches(int n, int v, int lo, int hi) {
+        int c = n >>> CHUNK_BITS, i = n & CHUNK_MASK;
+        return vars[c][i] == v && lows[c][i] == lo && highs[c][i] == hi;
+    }
+
+    public int mk(int v, int lo, int hi) {
+        if (lo == hi) return lo;
+
+        AtomicIntegerArray table = buckets;
+        int b = hash(v, lo, hi) & (table.length() - 1);
+        int head = table.get(b);
+        for (int n = head; n != FALSE; n = getNext(n)) {
+            if (matches(n, v, lo, hi)) return n;
+        }
+
+        int id = allocate();
+        int c = id >>> CHUNK_BITS, i = id & CHUNK_MASK;
+        vars[c][i] = v;
+        lows[c][i] = lo;
+        highs[c][i] = hi;
+        while (true) {
+            nexts[c][i] = head;
+            if (table.compareAndSet(b, head, id)) return id;
+
+            // someone else extended the list, only the newly linked prefix needs to be checked;
+            // on a hit, the allocated id is simply left unlinked and will be reclaimed by gc()
+            int newHead = table.get(b);
+            for (int n = newHead; n != head; n = getNext(n)) {
+                if (matches(n, v, lo, hi)) return n;
+            }
+            head = newHead;
+        }
+    }
+
+    private static long key(long op, int a, int b) {
+        return (op << 62) | ((long) a << 31) | b;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return 3 * (int) ((h ^ (h >>> 29)) & cacheMask);
+    }
+
+    private int lookup(long key) {
+        int s = slot(key);
+        long stamp = cache.get(s);
+        if ((stamp & 1) == 0 && cache.get(s + 1) == key) {
+            long ret = cache.get(s + 2);
+            if (cache.get(s) == stamp) return (int) ret;
+        }
+        return -1;
+    }
+
+    private void insert(long key, int result) {
+        int s = slot(key);
+        long stamp = cache.get(s);
+        if ((stamp & 1) != 0 || !cache.compareAndSet(s, stamp, stamp + 1)) return; // lossy under contention
+        cache.set(s + 1, key);
+        cache.set(s + 2, result);
+        cache.set(s, stamp + 2);
+    }
+
+    @Override
+    public long and(long a, long b) {
+        return and((int) a, (int) b);
+    }
+
+    @Override
+    public long or(long a, long b) {
+        return or((int) a, (int) b);
+    }
+
+    @Override
+    public long diff(long a, long b) {
+        return diff((int) a, (int) b);
+    }
+
+    @Override
+    public long not(long a) {
+        return not((int) a);
+    }
+
+    private int and(int a, int b) {
+        if (a == FALSE || b == FALSE) return FALSE;
+        if (a == TRUE || a == b) return b;
+        if (b == TRUE) return a;
+        if (a > b) { int t = a; a = b; b = t; }
+
+        long key = key(OP_AND, a, b);
+        int ret = lookup(key);
+        if (ret >= 0) return ret;
+
+        int va = getVar(a), vb = getVar(b), v = Math.min(va, vb);
+        int lo = and(va == v ? getLow(a) : a, vb == v ? getLow(b) : b);
+        int hi = and(va == v ? getHigh(a) : a, vb == v ? getHigh(b) : b);
+        ret = mk(v, lo, hi);
+        insert(key, ret);
+        return ret;
+    }
+
+    private int or(int a, int b) {
+        if (a == TRUE || b == TRUE) return TRUE;
+        if (a == FALSE || a == b) return b;
+        if (b == FALSE) return a;
+        if (a > b) { int t = a; a = b; b = t; }
+
+        long key = key(OP_OR, a, b);
+        int ret = lookup(key);
+        if (ret >= 0) return ret;
+
+        int va = getVar(a), vb = getVar(b), v = Math.min(va, vb);
+        int lo = or(va == v ? getLow(a) : a, vb == v ? getLow(b) : b);
+        int hi = or(va == v ? getHigh(a) : a, vb == v ? getHigh(b) : b);
+        ret = mk(v, lo, hi);
+        insert(key, ret);
+        return ret;
+    }
+
+    private int diff(int a, int b) {
+        if (a == FALSE || b == TRUE || a == b) return FALSE;
+        if (b == FALSE) return a;
+        if (a == TRUE) return not(b);
+
+        long key = key(OP_DIFF, a, b);
+        int ret = lookup(key);
+        if (ret >= 0) return ret;
+
+        int va = getVar(a), vb = getVar(b), v = Math.min(va, vb);
+        int lo = diff(va == v ? getLow(a) : a, vb == v ? getLow(b) : b);
+        int hi = diff(va == v ? getHigh(a) : a, vb == v ? getHigh(b) : b);
+        ret = mk(v, lo, hi);
+        insert(key, ret);
+        return ret;
+    }
+
+    private int not(int a) {
+        if (a == FALSE) return TRUE;
+        if (a == TRUE) return FALSE;
+
+        long key = key(OP_NOT, a, 0);
+        int ret = lookup(key);
+        if (ret >= 0) return ret;
+
+        ret = mk(getVar(a), not(getLow(a)), not(getHigh(a)));
+        insert(key, ret);
+        return ret;
+    }
+
+    /**
+     * @return the number of nodes handed out since the table was created or last collected (an upper bound of the live nodes)
+     */
+    public int nodeCount() {
+        return nodeCnt.get() - Math.max(freeTop.get(), 0);
+    }
+
+    /**
+     * Collects all nodes which are not reachable from a referenced node only if the table has doubled since the last gc().
+     * Must not run concurrently with any other operation.
+     */
+    @Override
+    public void maybeGc() {
+        if (nodeCount() > Math.max(2 * Math.max(liveAfterGc, CHUNK), reserved)) gc();
+    }
+
+    @Override
+    public long getCapacity() {
+        return (long) chunkCnt * CHUNK;
+    }
+
+    @Override
+    public int getGrowCount() {
+        return growCnt;
+    }
+
+    @Override
+    public int getGcCount() {
+        return gcCnt;
+    }
+
+    /**
+     * Stop-the-world mark and sweep: rebuilds the unique table from the live nodes, recycles the others, and clears the cache.
+     * Must not run concurrently with any other operation.
+     *
+     * @return the number of live nodes
+     */
+    @Override
+    public synchronized int gc() {
+        gcCnt++;
+        int total = nodeCnt.get();
+        boolean[] marked = new boolean[total];
+        marked[FALSE] = marked[TRUE] = true;
+
+        int[] stack = new int[64];
+        for (int n = 2; n < total; n++) {
+            if (marked[n] || refs[n >>> CHUNK_BITS].get(n & CHUNK_MASK) == 0) continue;
+            int top = 0;
+            stack[top++] = n;
+            marked[n] = true;
+            while (top > 0) {
+                int t = stack[--top];
+                if (top + 2 > stack.length) stack = java.util.Arrays.copyOf(stack, stack.length * 2);
+                int lo = getLow(t), hi = getHigh(t);
+                if (!marked[lo]) { marked[lo] = true; stack[top++] = lo; }
+                if (!marked[hi]) { marked[hi] = true; stack[top++] = hi; }
+            }
+        }
+
+        int live = 0;
+        for (int n = 2; n < total; n++) if (marked[n]) live++;
+
+        AtomicIntegerArray table = new AtomicIntegerArray(Math.max(buckets.length(), powerOfTwo(2 * live)));
+        if (table.length() > buckets.length()) growCnt++;
+        int[] newFree = new int[total - 2 - live];
+        int freeCnt = 0;
+        // push in descending order so that allocations pop the smallest ids first
+        for (int n = total - 1; n >= 2; n--) {
+            if (!marked[n]) {
+                newFree[freeCnt++] = n;
+                continue;
+            }
+            int b = hash(getVar(n), getLow(n), getHigh(n)) & (table.length() - 1);
+            nexts[n >>> CHUNK_BITS][n & CHUNK_MASK] = table.get(b);
+            table.set(b, n);
+        }
+
+        for (int i = 0; i <= cacheMask; i++) cache.set(3 * i + 1, NO_KEY);
+        this.free = newFree;
+        this.freeTop.set(freeCnt);
+        this.liveAfterGc = live + 2;
+        this.buckets = table;
+        return live + 2;
+    }
+}
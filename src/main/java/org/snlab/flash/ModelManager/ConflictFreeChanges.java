@@ -1,6 +1,7 @@
 package org.snlab.flash.ModelManager;
 
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
@@ -11,13 +12,25 @@ public class ConflictFreeChanges {
     private final BDDEngine bddEngine;
     private final HashMap<Port, Number> newPortToBdd;
     private final HashMap<Number, TreeMap<Integer, Port>> predToChanges;
+    private final HashMap<Port, ArrayList<Number>> newPortToDeltas; // buffered deltas, only in the batched mode
+    private final boolean batched;
 
     private int changeCnt;
 
     public ConflictFreeChanges(BDDEngine bddEngine) {
+        this(bddEngine, false);
+    }
+
+    /**
+     * @param batched whether deltas are buffered per port and united at once (see BDDEngine.orAll),
+     *                instead of being or-ed one by one into a left-deep chain, e.g., for full-snapshot batches
+     */
+    public ConflictFreeChanges(BDDEngine bddEngine, boolean batched) {
         this.bddEngine = bddEngine;
         this.newPortToBdd = new HashMap<>();
         this.predToChanges = new HashMap<>();
+        this.newPortToDeltas = new HashMap<>();
+        this.batched = batched;
         this.changeCnt = 0;
     }
 
@@ -27,16 +40,18 @@ public class ConflictFreeChanges {
      */
     public void add(Number deltaBdd, Port oldPort, Port newPort) {
         if (oldPort == newPort) {
-            bddEngine.deRef(deltaBdd.intValue());
+            bddEngine.deRef(deltaBdd.longValue());
             return;
         }
 
-        if (newPortToBdd.containsKey(newPort)) {
-            int t = newPortToBdd.get(newPort).intValue();
-            int union = bddEngine.or(t, deltaBdd.intValue());
+        if (batched) {
+            newPortToDeltas.computeIfAbsent(newPort, k -> new ArrayList<>()).add(deltaBdd);
+        } else if (newPortToBdd.containsKey(newPort)) {
+            long t = newPortToBdd.get(newPort).longValue();
+            long union = bddEngine.or(t, deltaBdd.longValue());
             newPortToBdd.replace(newPort, union);
             bddEngine.deRef(t);
-            bddEngine.deRef(deltaBdd.intValue());
+            bddEngine.deRef(deltaBdd.longValue());
         } else {
             newPortToBdd.put(newPort, deltaBdd);
         }
@@ -48,6 +63,7 @@ public class ConflictFreeChanges {
      * Notice the bddToChanges is null before invoking this method.
      */
     public void aggrBDDs() {
+        flush();
         for (Map.Entry<Port, Number> entry : newPortToBdd.entrySet()) {
             Number bdd = entry.getValue();
             Port port = entry.getKey();
@@ -56,14 +72,29 @@ public class ConflictFreeChanges {
         }
     }
 
+    /**
+     * Unites the buffered deltas of every port.
+     */
+    private void flush() {
+        for (Map.Entry<Port, ArrayList<Number>> entry : newPortToDeltas.entrySet()) {
+            ArrayList<Number> deltas = entry.getValue();
+            Number t = newPortToBdd.get(entry.getKey());
+            if (t != null) deltas.add(t);
+            newPortToBdd.put(entry.getKey(), bddEngine.orAll(deltas));
+        }
+        newPortToDeltas.clear();
+    }
+
     public void merge(ConflictFreeChanges t) {
+        t.flush();
         for (Map.Entry<Port, Number> entry : t.newPortToBdd.entrySet()) {
             this.add(entry.getValue(), null, entry.getKey());
         }
     }
 
     public void releaseBDDs() {
-        for (Number bdd : newPortToBdd.values()) bddEngine.deRef(bdd.intValue());
+        flush();
+        for (Number bdd : newPortToBdd.values()) bddEngine.deRef(bdd.longValue());
     }
 
     public int aggr0Size() {
@@ -71,6 +102,7 @@ public class ConflictFreeChanges {
     }
 
     public int aggr1Size() {
+        flush();
         return newPortToBdd.size();
     }
 
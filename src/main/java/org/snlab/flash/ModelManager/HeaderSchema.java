@@ -0,0 +1,91 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Declares the header fields (names and widths) and the BDD variable order.
+ * The variables of a field are contiguous, from its high bit to its low bit, and fields are laid out in the given order
+ * (the declaration order by default). A "dst" field is mandatory, since rules are indexed by their destination prefix.
+ *
+ * e.g., new HeaderSchema().add(DST, 32).add(VRF, 12).add(PROTO, 8).add(SRC, 32).add(DST_PORT, 16)
+ */
+public final class HeaderSchema {
+    public static final String DST = "dst", SRC = "src", PROTO = "proto", SRC_PORT = "sport", DST_PORT = "dport", VRF = "vrf";
+
+    private final ArrayList<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> widths = new HashMap<>();
+    private final HashMap<String, Integer> offsets = new HashMap<>();
+    private int varNum = 0;
+
+    /**
+     * The layout used before schemas were configurable: the destination bits followed by 8 (suffix-matched) source bits.
+     */
+    public static HeaderSchema of(int size) {
+        return new HeaderSchema().add(DST, size).add(SRC, 8);
+    }
+
+    public HeaderSchema add(String name, int width) {
+        if (widths.containsKey(name)) throw new IllegalArgumentException("Duplicated header field " + name);
+        if (width <= 0 || width > 128) throw new IllegalArgumentException("Header field " + name + " has width " + width);
+        names.add(name);
+        widths.put(name, width);
+        layout();
+        return this;
+    }
+
+    /**
+     * Re-orders the BDD variables, the fields are placed in the given order (the first one is at the top of every BDD);
+     * tuning the order per deployment keeps BDDs small, e.g., fields that are mostly wildcards go to the bottom.
+     */
+    public HeaderSchema order(String... order) {
+        if (order.length != names.size() || !new ArrayList<>(Arrays.asList(order)).containsAll(names))
+            throw new IllegalArgumentException("The order " + Arrays.toString(order) + " is not a permutation of " + names);
+        names.clear();
+        names.addAll(Arrays.asList(order));
+        layout();
+        return this;
+    }
+
+    private void layout() {
+        varNum = 0;
+        for (String name : names) {
+            offsets.put(name, varNum);
+            varNum += widths.get(name);
+        }
+    }
+
+    public boolean has(String name) {
+        return widths.containsKey(name);
+    }
+
+    public int getWidth(String name) {
+        Integer ret = widths.get(name);
+        if (ret == null) throw new IllegalArgumentException("Unknown header field " + name);
+        return ret;
+    }
+
+    /**
+     * @return the index of the variable of the highest bit of the field
+     */
+    public int getOffset(String name) {
+        getWidth(name);
+        return offsets.get(name);
+    }
+
+    public int getVarNum() {
+        return varNum;
+    }
+
+    public ArrayList<String> getFields() {
+        return new ArrayList<>(names);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder ret = new StringBuilder();
+        for (String name : names) ret.append(ret.length() == 0 ? "" : ", ").append(name).append(":").append(widths.get(name));
+        return ret.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.snlab.flash.ModelManager.Ports.Ports;
+
+/**
+ * Buckets the ECs by the values of the leading bits of the destination their predicates take (see BDDEngine.dstBuckets),
+ * so a change is only intersected with the ECs sharing a bucket with it, instead of with every EC of the model.
+ * ECs are disjoint, thus a small change (e.g., the hit of an inserted /24) falls into a bucket of few ECs.
+ * Requires a BDD package which exposes its nodes (see BDDBackend.exposesNodes).
+ */
+final class IndexedECs {
+    private final BDDEngine bddEngine;
+    private final int skip, bits;
+    private final ArrayList<HashSet<Ports>> buckets;
+    private final HashMap<Ports, BitSet> ecToBuckets;
+
+    /**
+     * @param skip the number of leading destination bits which are ignored, e.g., the ones shared by all ECs of a shard
+     * @param bits the number of destination bits after them, 2^bits buckets
+     */
+    IndexedECs(BDDEngine bddEngine, int skip, int bits) {
+        this.bddEngine = bddEngine;
+        this.skip = skip;
+        this.bits = bits;
+        this.buckets = new ArrayList<>(1 << bits);
+        for (int i = 0; i < 1 << bits; i++) buckets.add(new HashSet<>());
+        this.ecToBuckets = new HashMap<>();
+    }
+
+    void add(Ports ports, Number predicate) {
+        BitSet t = bddEngine.dstBuckets(predicate.longValue(), skip, bits);
+        remove(ports);
+        ecToBuckets.put(ports, t);
+        for (int i = t.nextSetBit(0); i >= 0; i = t.nextSetBit(i + 1)) buckets.get(i).add(ports);
+    }
+
+    void remove(Ports ports) {
+        BitSet t = ecToBuckets.remove(ports);
+        if (t == null) return;
+        for (int i = t.nextSetBit(0); i >= 0; i = t.nextSetBit(i + 1)) buckets.get(i).remove(ports);
+    }
+
+    /**
+     * @return the ECs which may intersect the predicate
+     */
+    HashSet<Ports> candidates(long predicate) {
+        BitSet t = bddEngine.dstBuckets(predicate, skip, bits);
+        HashSet<Ports> ret = new HashSet<>();
+        for (int i = t.nextSetBit(0); i >= 0; i = t.nextSetBit(i + 1)) ret.addAll(buckets.get(i));
+        return ret;
+    }
+
+    void clear() {
+        for (HashSet<Ports> bucket : buckets) bucket.clear();
+        ecToBuckets.clear();
+    }
+}
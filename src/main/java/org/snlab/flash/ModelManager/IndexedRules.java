@@ -1,131 +1,698 @@
 package org.snlab.flash.ModelManager;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.List;
 
+import org.snlab.network.FieldMatch;
 import org.snlab.network.Rule;
 
 // Before checking whether two matches are overlapped using BDD-intersection, there is a simple quick check:
 //    -  if there exists a pair of conflicting non-wildcard bits, e.g., **10 v.s. 0*0* conflicts at the 3rd bit.
 //
 // We build a Trie to check conflicts between lpm-match part;
-// Notice ternary-match is still allowed, but we do not build index on it.
+// Notice ternary-match on other fields (e.g., ACLs) is still allowed: with the header schema, a rule keeps the intervals
+// of its field matches at its node (see box), and the rules whose intervals are disjoint from the target's on any field
+// are filtered out while scanning a node, instead of being left to BDD-intersection.
 //
 // This index is used by both of APKeepStar and Flash.
 // It has performance impact on Internet2 dataset (while a linear scanning is fine for other datasets).
 public class IndexedRules {
-    HashSet<Rule> rules;
+    int[] ids, priorities; // the rules at a node by their ids (see RuleTable), by descending priority
+    long[][] boxes; // the boxes of the rules at a node, null until a rule with field matches comes
+    int cnt;
     IndexedRules left, right, dst;
+    int subtree; // the number of rules at and below a node of a dst trie
+    int nonLpm; // the number of rules of a device (at its root) which are not LPM rules, see isLpm
+    int skip; // the leading destination bits of the pieces of shorter rules (at the root), see setSkip
+    // The tries are path-compressed (Patricia): a node is only kept where rules are or paths branch, and holds its whole
+    // path from the root, the bit i at 63 - i % 64 of k0 (i < 64) or k1; only the first depth bits count.
+    int depth;
+    long k0, k1;
+    private String[] fields; // the fields of the header schema (at the root), null if field matches are not checked
+    private int[] widths;
 
     public IndexedRules() {
-        rules = new HashSet<>();
+        ids = null; // most nodes are pass-through levels, the array is created by the first rule
         left = right = null;
     }
 
-    private IndexedRules buildNext(int flag) {
-        if (flag == 0) {
-            if (this.left == null) {
-                this.left = new IndexedRules();
+    /**
+     * A trie which also filters the rules by their matches on the other fields of the schema.
+     */
+    public IndexedRules(HeaderSchema schema) {
+        this();
+        List<String> names = schema.getFields();
+        this.fields = names.toArray(new String[0]);
+        this.widths = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) widths[i] = schema.getWidth(fields[i]);
+    }
+
+    private IndexedRules(int depth, long k0, long k1) {
+        this.depth = depth;
+        this.k0 = k0;
+        this.k1 = k1;
+    }
+
+    private static int bit(long k0, long k1, int i) {
+        return (int) ((i < 64 ? k0 >>> (63 - i) : k1 >>> (127 - i)) & 1);
+    }
+
+    /**
+     * @return the first bit where the path of the node and the key differ, 128 if none
+     */
+    private int mismatch(long k0, long k1) {
+        long x = this.k0 ^ k0;
+        if (x != 0) return Long.numberOfLeadingZeros(x);
+        return 64 + Long.numberOfLeadingZeros(this.k1 ^ k1);
+    }
+
+    private IndexedRules child(int flag) {
+        return flag == 0 ? this.left : this.right;
+    }
+
+    private void setChild(int flag, IndexedRules node) {
+        if (flag == 0) this.left = node;
+        else this.right = node;
+    }
+
+    /**
+     * @return the node of the path (k0, k1) of length len from this root, created (by splitting an edge) if absent
+     */
+    private IndexedRules build(long k0, long k1, int len) {
+        IndexedRules t = this;
+        while (t.depth < len) {
+            int flag = bit(k0, k1, t.depth);
+            IndexedRules c = t.child(flag);
+            if (c == null) {
+                c = new IndexedRules(len, k0, k1);
+                t.setChild(flag, c);
+                return c;
             }
-            return this.left;
-        } else {
-            if (this.right == null) {
-                this.right = new IndexedRules();
+            int m = Math.min(c.mismatch(k0, k1), Math.min(c.depth, len));
+            if (m < c.depth) { // the path leaves the edge to c at m
+                IndexedRules n = new IndexedRules(m, k0, k1);
+                n.subtree = c.subtree;
+                n.setChild(bit(c.k0, c.k1, m), c);
+                t.setChild(flag, n);
+                c = n;
             }
-            return this.right;
+            t = c;
+        }
+        return t;
+    }
+
+    /**
+     * @return the node of the path (k0, k1) of length len from this root, null if absent
+     */
+    private IndexedRules find(long k0, long k1, int len) {
+        IndexedRules t = this;
+        while (t != null && t.depth < len) {
+            t = t.child(bit(k0, k1, t.depth));
+            if (t != null && (t.depth > len || t.mismatch(k0, k1) < t.depth)) return null;
+        }
+        return t;
+    }
+
+    /**
+     * @return the next node on the path (k0, k1) of length len below t (t.depth < len), which is either on the path
+     *         (depth <= len) or below its end (depth > len), null if no node is
+     */
+    private static IndexedRules next(IndexedRules t, long k0, long k1, int len) {
+        IndexedRules c = t.child(bit(k0, k1, t.depth));
+        if (c == null || c.mismatch(k0, k1) < Math.min(c.depth, len)) return null;
+        return c;
+    }
+
+    // A node is scanned linearly, which is dominated by the overlap query of the same rule (every rule of the node overlaps it)
+    private int find(int id) {
+        for (int i = 0; i < cnt; i++) if (ids[i] == id) return i;
+        return -1;
+    }
+
+    private boolean add(int id, int priority, long[] box) {
+        if (this.ids == null) {
+            this.ids = new int[2];
+            this.priorities = new int[2];
+        }
+        if (find(id) >= 0) return false;
+        if (box != null && boxes == null) boxes = new long[ids.length][];
+        if (cnt == ids.length) {
+            ids = Arrays.copyOf(ids, cnt * 2);
+            priorities = Arrays.copyOf(priorities, cnt * 2);
+            if (boxes != null) boxes = Arrays.copyOf(boxes, cnt * 2);
+        }
+        int i = below(priority); // after the rules of the same priority
+        System.arraycopy(ids, i, ids, i + 1, cnt - i);
+        System.arraycopy(priorities, i, priorities, i + 1, cnt - i);
+        ids[i] = id;
+        priorities[i] = priority;
+        if (boxes != null) {
+            System.arraycopy(boxes, i, boxes, i + 1, cnt - i);
+            boxes[i] = box;
+        }
+        cnt++;
+        return true;
+    }
+
+    private boolean del(int id) {
+        int i = find(id);
+        if (i < 0) return false;
+        System.arraycopy(ids, i + 1, ids, i, cnt - 1 - i);
+        System.arraycopy(priorities, i + 1, priorities, i, cnt - 1 - i);
+        if (boxes != null) {
+            System.arraycopy(boxes, i + 1, boxes, i, cnt - 1 - i);
+            boxes[cnt - 1] = null;
+        }
+        cnt--;
+        return true;
+    }
+
+    /**
+     * @return the position of the first rule of the node whose priority is below the bound
+     */
+    private int below(long bound) {
+        int l = 0, r = cnt;
+        while (l < r) {
+            int m = (l + r) >>> 1;
+            if (priorities[m] >= bound) l = m + 1;
+            else r = m;
+        }
+        return l;
+    }
+
+    private void addRulesTo(Cursor ret) {
+        if (cnt == 0) return;
+        int i = below(ret.hi);
+        if (boxes == null || ret.boxLen == 0) {
+            for (; i < cnt && priorities[i] > ret.lo; i++) ret.add(ids[i], priorities[i]);
+        } else {
+            for (; i < cnt && priorities[i] > ret.lo; i++) if (!disjoint(boxes[i], ret.box, ret.boxLen)) ret.add(ids[i], priorities[i]);
         }
     }
 
-    private void rm(Rule rule) {
-        this.rules.remove(rule);
+    /**
+     * The box of a rule is its field matches as intervals of values, {field, lo, hi} per match by the index of the field
+     * in the schema; a prefix-match on a field wider than 64 bits only keeps its high bits (those beyond the low 64),
+     * so boxes over-approximate matches and never filter out an overlapping rule.
+     * @return null if the rule has no field match, or field matches are not checked
+     */
+    private long[] box(Rule rule) {
+        if (fields == null || rule.getFields().isEmpty()) return null;
+        long[] ret = new long[3 * rule.getFields().size()];
+        int n = box(rule, ret);
+        return n == 0 ? null : Arrays.copyOf(ret, n);
     }
 
-    private void add(Rule rule) {
-        this.rules.add(rule);
+    /**
+     * Writes the box of the rule into ret (of at least 3 longs per field match), field matches are checked.
+     * @return the length of the box
+     */
+    private int box(Rule rule, long[] ret) {
+        int n = 0;
+        for (FieldMatch m : rule.getFields()) {
+            int f = 0;
+            while (f < fields.length && !fields[f].equals(m.getField())) f++;
+            if (f == fields.length) continue; // rejected by the encoding anyway
+            long lo, hi;
+            if (m.isRange()) {
+                lo = m.getLo();
+                hi = m.getHi();
+            } else {
+                int width = widths[f], prefix = m.getPrefix();
+                long value = m.getValue();
+                if (width > 64) {
+                    prefix = Math.min(prefix, width - 64);
+                    width -= 64;
+                    value = m.getValueHi();
+                }
+                if (prefix <= 0) continue; // a wildcard
+                long wild = (1L << (width - Math.min(prefix, width))) - 1, mask = width == 64 ? -1L : (1L << width) - 1;
+                lo = value & mask & ~wild;
+                hi = lo | wild;
+            }
+            ret[n++] = f;
+            ret[n++] = lo;
+            ret[n++] = hi;
+        }
+        return n;
     }
 
-    private HashSet<Rule> getRules() {
-        return this.rules;
+    /**
+     * @return whether the boxes have disjoint intervals on some field, i.e., the rules cannot overlap
+     */
+    private static boolean disjoint(long[] a, long[] b, int bLen) {
+        if (a == null) return false;
+        for (int i = 0; i < a.length; i += 3) {
+            for (int j = 0; j < bLen; j += 3) {
+                if (a[i] == b[j] && (Long.compareUnsigned(a[i + 2], b[j + 1]) < 0 || Long.compareUnsigned(b[j + 2], a[i + 1]) < 0))
+                    return true;
+            }
+        }
+        return false;
     }
 
-    private void explore(ArrayList<Rule> ret) {
+    private void explore(Cursor ret) {
         if (this.left != null) this.left.explore(ret);
         if (this.right != null) this.right.explore(ret);
-        ret.addAll(this.getRules());
+        this.addRulesTo(ret);
+    }
+
+    /**
+     * @return the w-th long (0 the higher) of the key of the destination, i.e., its bits from the highest of size on
+     */
+    private static long dstKey(Rule rule, int size, int w) {
+        int shift = 128 - size;
+        long hi = rule.getMatchHi(), lo = rule.getMatch();
+        if (shift >= 64) return w == 0 ? lo << (shift - 64) : 0;
+        if (shift == 0) return w == 0 ? hi : lo;
+        return w == 0 ? hi << shift | lo >>> (64 - shift) : lo << shift;
     }
 
-    public void read(Rule rule, ArrayList<Rule> ret, int size) {
-        if (this.dst == null) return;
+    /**
+     * @return the key of the src suffix, i.e., its bits from the lowest on
+     */
+    private static long srcKey(Rule rule) {
+        return Long.reverse(rule.getSrc());
+    }
+
+    /**
+     * @return the number of destination bits indexed for the rule, which is as wide as the destination unless its prefix
+     *         is empty (see BDDEngine.encode)
+     */
+    private static int dstLength(Rule rule) {
+        return rule.getPrefix();
+    }
+
+    private void read(long k0, long k1, int len, Cursor ret) {
         IndexedRules t = this.dst;
-        if (ret != null) ret.addAll(t.getRules());
+        while (t != null) {
+            t.addRulesTo(ret);
+            if (t.depth >= len) {
+                if (t.left != null) t.left.explore(ret);
+                if (t.right != null) t.right.explore(ret);
+                return;
+            }
+            t = next(t, k0, k1, len);
+            if (t != null && t.depth > len) {
+                t.explore(ret);
+                return;
+            }
+        }
+    }
 
-        long dstIp = rule.getMatch().longValue();
-        for (int i = 0; i < rule.getPrefix() - (32 - size); i++) {
-            long bit = (dstIp >> (size - 1 - i)) & 1;
-            t = (bit == 0) ? t.left : t.right;
-            if (t == null) return;
+    private int readCount(long k0, long k1, int len) {
+        int ret = 0;
+        IndexedRules t = this.dst;
+        while (t != null) {
+            if (t.depth >= len) return ret + t.subtree;
+            ret += t.cnt;
+            t = next(t, k0, k1, len);
+            if (t != null && t.depth > len) return ret + t.subtree;
+        }
+        return ret;
+    }
 
-            if (ret != null) ret.addAll(t.getRules());
+    /**
+     * Reads the dst tries of this src node and all below it.
+     */
+    private void exploreSrc(long k0, long k1, int len, Cursor ret) {
+        this.read(k0, k1, len, ret);
+        if (this.left != null) this.left.exploreSrc(k0, k1, len, ret);
+        if (this.right != null) this.right.exploreSrc(k0, k1, len, ret);
+    }
+
+    private int exploreSrcCount(long k0, long k1, int len) {
+        int ret = this.readCount(k0, k1, len);
+        if (this.left != null) ret += this.left.exploreSrcCount(k0, k1, len);
+        if (this.right != null) ret += this.right.exploreSrcCount(k0, k1, len);
+        return ret;
+    }
+
+    /**
+     * Adds diff to the counters on the dst path of the rule, from the dst trie of this (src) node; the nodes left
+     * without rules below are dropped and the pass-through nodes left with one child are merged into it.
+     */
+    private void count(long k0, long k1, int len, int diff) {
+        IndexedRules gp = null, p = null, t = this.dst;
+        while (true) {
+            t.subtree += diff;
+            if (t.subtree == 0 && p != null) {
+                p.setChild(bit(k0, k1, p.depth), null);
+                compact(gp, p, k0, k1);
+                return;
+            }
+            if (t.depth >= len) {
+                compact(p, t, k0, k1);
+                return;
+            }
+            gp = p;
+            p = t;
+            t = t.child(bit(k0, k1, t.depth));
         }
+    }
 
-        if (ret != null) t.explore(ret);
+    /**
+     * Merges the node t below p on the path into its only child, if t holds no rule.
+     */
+    private static void compact(IndexedRules p, IndexedRules t, long k0, long k1) {
+        if (p == null || t.cnt > 0 || (t.left != null && t.right != null)) return;
+        p.setChild(bit(k0, k1, p.depth), t.left != null ? t.left : t.right);
     }
 
-    private void exploreSrc(Rule rule, ArrayList<Rule> ret, int size) {
-        if (this.left != null) {
-            this.left.read(rule, ret, size);
-            this.left.exploreSrc(rule, ret, size);
+    /**
+     * Collects the rules of the dst tries along the src suffix of the rule and below it.
+     */
+    private void src(Rule rule, Cursor ret, int size) {
+        long d0 = dstKey(rule, size, 0), d1 = dstKey(rule, size, 1), s0 = srcKey(rule);
+        int len = dstLength(rule), srcLen = rule.getSrcSuffix();
+        IndexedRules t = this;
+        while (t != null) {
+            t.read(d0, d1, len, ret);
+            if (t.depth >= srcLen) {
+                if (t.left != null) t.left.exploreSrc(d0, d1, len, ret);
+                if (t.right != null) t.right.exploreSrc(d0, d1, len, ret);
+                return;
+            }
+            t = next(t, s0, 0, srcLen);
+            if (t != null && t.depth > srcLen) {
+                t.exploreSrc(d0, d1, len, ret);
+                return;
+            }
         }
-        if (this.right != null) {
-            this.right.read(rule, ret, size);
-            this.right.exploreSrc(rule, ret, size);
+    }
+
+    /**
+     * @param rule the target rule
+     * @return the ids of all rules overlapped with the target rule, by descending priority
+     *         here "overlapping" means there is no conflict between prefix-matches, nor between the boxes of the field
+     *         matches (see box), which is not checked by BDD-intersection here
+     */
+    public int[] getAllOverlappingWith(Rule rule, int size) {
+        return getOverlappingWith(rule, Long.MIN_VALUE, Long.MAX_VALUE, size);
+    }
+
+    /**
+     * @return the ids of the rules overlapped with the target rule, whose priority is above the given one,
+     *         by descending priority, e.g., the ones shadowing the target rule
+     */
+    public int[] getOverlappingAbove(Rule rule, int priority, int size) {
+        return getOverlappingWith(rule, priority, Long.MAX_VALUE, size);
+    }
+
+    /**
+     * @return the ids of the rules overlapped with the target rule, whose priority is below the given one,
+     *         by descending priority, e.g., the ones shadowed by the target rule
+     */
+    public int[] getOverlappingBelow(Rule rule, int priority, int size) {
+        return getOverlappingWith(rule, Long.MIN_VALUE, priority, size);
+    }
+
+    /**
+     * As getAllOverlappingWith, into the cursor of the caller instead of a new array.
+     */
+    public void allOverlappingWith(Rule rule, int size, Cursor cursor) {
+        overlapping(rule, Long.MIN_VALUE, Long.MAX_VALUE, size, cursor);
+    }
+
+    /**
+     * As getOverlappingAbove, into the cursor of the caller instead of a new array.
+     */
+    public void overlappingAbove(Rule rule, int priority, int size, Cursor cursor) {
+        overlapping(rule, priority, Long.MAX_VALUE, size, cursor);
+    }
+
+    /**
+     * As getOverlappingBelow, into the cursor of the caller instead of a new array.
+     */
+    public void overlappingBelow(Rule rule, int priority, int size, Cursor cursor) {
+        overlapping(rule, Long.MIN_VALUE, priority, size, cursor);
+    }
+
+    private int[] getOverlappingWith(Rule rule, long lo, long hi, int size) {
+        Cursor ret = new Cursor();
+        overlapping(rule, lo, hi, size, ret);
+        return ret.toArray();
+    }
+
+    /**
+     * Collects the rules with priorities in (lo, hi) only, each node is sorted by priority thus scanned from the first
+     * rule below hi to the last above lo.
+     */
+    private void overlapping(Rule rule, long lo, long hi, int size, Cursor ret) {
+        ret.reset(lo, hi);
+        if (fields != null && !rule.getFields().isEmpty()) {
+            if (ret.box.length < 3 * rule.getFields().size()) ret.box = new long[3 * rule.getFields().size()];
+            ret.boxLen = box(rule, ret.box);
         }
+        this.src(rule, ret, size);
+        ret.sort();
     }
 
-    public IndexedRules traverse(Rule rule, int size) {
-        if (this.dst == null) this.dst = new IndexedRules();
+    /**
+     * @return the number of rules getAllOverlappingWith(rule, size) returns without checking the field matches,
+     *         i.e., an upper bound, without collecting them
+     */
+    public int countOverlappingWith(Rule rule, int size) {
+        long d0 = dstKey(rule, size, 0), d1 = dstKey(rule, size, 1), s0 = srcKey(rule);
+        int len = dstLength(rule), srcLen = rule.getSrcSuffix(), ret = 0;
+        IndexedRules t = this;
+        while (t != null) {
+            ret += t.readCount(d0, d1, len);
+            if (t.depth >= srcLen) {
+                if (t.left != null) ret += t.left.exploreSrcCount(d0, d1, len);
+                if (t.right != null) ret += t.right.exploreSrcCount(d0, d1, len);
+                return ret;
+            }
+            t = next(t, s0, 0, srcLen);
+            if (t != null && t.depth > srcLen) return ret + t.exploreSrcCount(d0, d1, len);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the ids of all rules of the (src) trie, by descending priority
+     */
+    public int[] getAll() {
+        Cursor ret = new Cursor();
+        ret.reset(Long.MIN_VALUE, Long.MAX_VALUE);
+        exploreAll(ret);
+        ret.sort();
+        return ret.toArray();
+    }
+
+    private void exploreAll(Cursor ret) {
+        if (this.dst != null) this.dst.explore(ret);
+        if (this.left != null) this.left.exploreAll(ret);
+        if (this.right != null) this.right.exploreAll(ret);
+    }
+
+    public int size() {
+        int ret = this.dst == null ? 0 : this.dst.subtree;
+        if (this.left != null) ret += this.left.size();
+        if (this.right != null) ret += this.right.size();
+        return ret;
+    }
+
+    /**
+     * An LPM rule only matches a destination prefix at a priority of its prefix length, as Rule(Device, long, int, Port),
+     * or is the default rule (the empty prefix below all priorities), so a more specific rule always has a higher priority.
+     * So is a piece of the skip bits below their priority (e.g., a shorter rule split by ShardedInverseModel).
+     */
+    boolean isLpm(Rule rule, int size) {
+        if (rule.getSrcSuffix() > 0 || !rule.getFields().isEmpty()) return false;
+        int priority = rule.getPriority(), prefix = rule.getPrefix();
+        return priority == prefix || (prefix == 0 && priority < 0) || (prefix == skip && priority >= 0 && priority < skip);
+    }
+
+    /**
+     * Has to be set before any rule other than the default ones is inserted.
+     * @param skip the prefix of the pieces at the root of a subspace, e.g., of a shard
+     */
+    void setSkip(int skip) {
+        this.skip = skip;
+    }
+
+    /**
+     * @return whether all rules of the (src) trie of a device are LPM rules, i.e., the lpm* methods apply
+     */
+    public boolean isLpm() {
+        return nonLpm == 0;
+    }
+
+    /**
+     * The hit of an LPM rule is its prefix minus the more specific prefixes with rules below it, which is built bottom-up
+     * from the trie by one mk per node on the way (skipping the subtrees without rules), instead of a diff per rule above.
+     * @return the referenced hit of the rule with the priority, the device only has LPM rules
+     */
+    long lpmHit(BDDEngine bddEngine, Rule rule, int priority, int size) {
+        long k0 = dstKey(rule, size, 0), k1 = dstKey(rule, size, 1);
+        int len = dstLength(rule), offset = bddEngine.getSchema().getOffset(HeaderSchema.DST);
         IndexedRules t = this.dst;
+        while (t != null && t.depth < len) t = next(t, k0, k1, len);
 
-        long dstIp = rule.getMatch().longValue();
-        for (int i = 0; i < rule.getPrefix() - (32 - size); i++) {
-            long bit = (dstIp >> (size - 1 - i)) & 1;
-            t = t.buildNext(bit == 0 ? 0 : 1);
+        long ret;
+        if (t == null) {
+            ret = bddEngine.ref(BDDEngine.BDDTrue);
+        } else if (t.depth > len) { // no rule of the prefix, the rules below are all under t
+            ret = uncovered(t, bddEngine, offset, len);
+        } else if (t.cnt > 0 && t.priorities[0] > priority) { // shadowed by a rule of the same prefix
+            ret = BDDEngine.BDDFalse;
+        } else if (len == size) {
+            ret = bddEngine.ref(BDDEngine.BDDTrue);
+        } else {
+            long low = uncovered(t.left, bddEngine, offset, len + 1), high = uncovered(t.right, bddEngine, offset, len + 1);
+            ret = mk(bddEngine, offset + len, low, high);
         }
+        for (int i = len - 1; i >= 0 && ret != BDDEngine.BDDFalse; i--) {
+            ret = bit(k0, k1, i) == 0 ? mk(bddEngine, offset + i, ret, BDDEngine.BDDFalse)
+                    : mk(bddEngine, offset + i, BDDEngine.BDDFalse, ret);
+        }
+        return ret;
+    }
 
-        return t;
+    /**
+     * @param from the first bit of the edge into the node, i.e., the result is on the variables from offset + from on
+     * @return the referenced headers of the subspace of the edge which no rule at or below the node matches
+     */
+    private static long uncovered(IndexedRules node, BDDEngine bddEngine, int offset, int from) {
+        if (node == null || node.subtree == 0) return bddEngine.ref(BDDEngine.BDDTrue);
+        long ret = BDDEngine.BDDFalse;
+        if (node.cnt == 0) {
+            long low = uncovered(node.left, bddEngine, offset, node.depth + 1);
+            long high = uncovered(node.right, bddEngine, offset, node.depth + 1);
+            ret = mk(bddEngine, offset + node.depth, low, high);
+        }
+        for (int i = node.depth - 1; i >= from; i--) { // the headers off the edge are not matched
+            ret = bit(node.k0, node.k1, i) == 0 ? mk(bddEngine, offset + i, ret, BDDEngine.BDDTrue)
+                    : mk(bddEngine, offset + i, BDDEngine.BDDTrue, ret);
+        }
+        return ret;
     }
 
-    public IndexedRules traverseSrc(Rule rule, ArrayList<Rule> ret, int size) {
-        IndexedRules t = this;
-        if (ret != null) t.read(rule, ret, size);
+    /**
+     * mk consuming both (referenced) children.
+     */
+    private static long mk(BDDEngine bddEngine, int v, long low, long high) {
+        long ret = bddEngine.mk(v, low, high);
+        bddEngine.deRef(low);
+        bddEngine.deRef(high);
+        return ret;
+    }
 
-        long srcIp = rule.getSrc();
-        for (int i = 0; i < rule.getSrcSuffix(); i++) {
-            long bit = (srcIp >> i) & 1;
-            t = t.buildNext(bit == 0 ? 0 : 1);
-            if (ret != null) t.read(rule, ret, size);
+    /**
+     * The rules below an LPM rule are on the path to its prefix, where the deepest one is the highest and matches all
+     * headers of the rule, e.g., it takes the hit of the rule once deleted.
+     * @return the id of the highest rule below the priority overlapping with the rule (the smallest id among ties),
+     *         -1 if none; the device only has LPM rules
+     */
+    int lpmLower(Rule rule, int priority, int size) {
+        long k0 = dstKey(rule, size, 0), k1 = dstKey(rule, size, 1);
+        int ret = -1, len = dstLength(rule);
+        IndexedRules t = this.dst;
+        while (t != null && t.depth <= len) {
+            int j = t.cnt == 0 ? 0 : t.below(priority);
+            if (j < t.cnt) {
+                ret = t.ids[j];
+                for (int k = j + 1; k < t.cnt && t.priorities[k] == t.priorities[j]; k++) ret = Math.min(ret, t.ids[k]);
+            }
+            if (t.depth == len) break;
+            t = next(t, k0, k1, len);
         }
-
-        if (ret != null) t.exploreSrc(rule, ret, size);
-        return t.traverse(rule, size);
+        return ret;
     }
 
     /**
-     * @param rule the target rule
-     * @return all rules overlapped with the target rule
-     *         here "overlapping" means there is no conflict between prefix-matches (ternary-match is not checked here)
+     * @return a deep copy of the trie, which is changed independently of this one
      */
-    public ArrayList<Rule> getAllOverlappingWith(Rule rule, int size) {
-        ArrayList<Rule> ret = new ArrayList<>();
-        this.traverseSrc(rule, ret, size);
+    public IndexedRules copy() {
+        IndexedRules ret = new IndexedRules();
+        if (this.ids != null) {
+            ret.ids = Arrays.copyOf(this.ids, this.ids.length);
+            ret.priorities = Arrays.copyOf(this.priorities, this.priorities.length);
+        }
+        if (this.boxes != null) ret.boxes = Arrays.copyOf(this.boxes, this.boxes.length); // a box is never changed
+        ret.cnt = this.cnt;
+        ret.subtree = this.subtree;
+        ret.nonLpm = this.nonLpm;
+        ret.skip = this.skip;
+        ret.depth = this.depth;
+        ret.k0 = this.k0;
+        ret.k1 = this.k1;
+        ret.fields = this.fields;
+        ret.widths = this.widths;
+        if (this.left != null) ret.left = this.left.copy();
+        if (this.right != null) ret.right = this.right.copy();
+        if (this.dst != null) ret.dst = this.dst.copy();
         return ret;
     }
 
-    public void remove(Rule rule, int size) {
-        this.traverseSrc(rule, null, size).rm(rule);
+    /**
+     * @param id the id of the rule (see RuleTable), by which it is returned by queries
+     */
+    public void remove(Rule rule, int id, int size) {
+        long d0 = dstKey(rule, size, 0), d1 = dstKey(rule, size, 1);
+        int len = dstLength(rule);
+        IndexedRules s = this.find(srcKey(rule), 0, rule.getSrcSuffix());
+        if (s == null || s.dst == null) return;
+        IndexedRules t = s.dst.find(d0, d1, len);
+        if (t == null || !t.del(id)) return;
+        s.count(d0, d1, len, -1);
+        if (!isLpm(rule, size)) this.nonLpm--;
+    }
+
+    public void insert(Rule rule, int id, int size) {
+        long d0 = dstKey(rule, size, 0), d1 = dstKey(rule, size, 1);
+        int len = dstLength(rule);
+        IndexedRules s = this.build(srcKey(rule), 0, rule.getSrcSuffix());
+        if (s.dst == null) s.dst = new IndexedRules();
+        if (!s.dst.build(d0, d1, len).add(id, rule.getPriority(), box(rule))) return;
+        s.count(d0, d1, len, 1);
+        if (!isLpm(rule, size)) this.nonLpm++;
     }
 
-    public void insert(Rule rule, int size) {
-        this.traverseSrc(rule, null, size).add(rule);
+    /**
+     * The ids collected by an overlap query of the priorities in (lo, hi), which are merged by descending priority (then
+     * by id) once collected, as every node only is sorted on its own. A cursor is reused by the queries of its owner,
+     * e.g., a worker of Stage 1, so a query allocates nothing once the buffers are large enough; the owner may stop
+     * reading at any point, e.g., once the hit of a rule is empty.
+     */
+    public static final class Cursor {
+        private long lo, hi;
+        private long[] box = new long[0]; // the box of the target rule, see IndexedRules.box
+        private int boxLen;
+        private long[] a = new long[16];
+        private int n, i;
+
+        private void reset(long lo, long hi) {
+            this.lo = lo;
+            this.hi = hi;
+            this.boxLen = this.n = this.i = 0;
+        }
+
+        private void add(int id, int priority) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = ((long) ~priority << 32) | id; // ~ reverses the order of priorities
+        }
+
+        private void sort() {
+            Arrays.sort(a, 0, n);
+        }
+
+        public boolean hasNext() {
+            return i < n;
+        }
+
+        /**
+         * @return the id of the next rule, by descending priority
+         */
+        public int next() {
+            return (int) a[i++];
+        }
+
+        private int[] toArray() {
+            int[] ret = new int[n];
+            for (int k = 0; k < n; k++) ret[k] = (int) a[k];
+            return ret;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Predicates on the destination field only, as sorted sets of disjoint half-closed intervals [l, h).
+ * For LPM-only tables every rule is a single interval (see AtomVerifier), where intersection and difference
+ * are linear merges, much cheaper than BDD operations and far smaller than BDD nodes.
+ *
+ * Sets are hash-consed, so equal predicates share one handle as BDDs do. The handles are negative, thus never collide
+ * with the terminals (0 and 1 are the empty set and the whole space) nor with the nodes of a backend (non-negative).
+ * A set is translated to a BDD on demand (once the engine moves to BDDs), and the translation is kept with it.
+ */
+final class IntervalSets {
+    private static final int AND = 0, OR = 1, DIFF = 2;
+
+    private final BDDBackend bdd;
+    private final PrefixCode dst;
+    private final int width;
+    private final long[] all; // the whole space, i.e., BDDEngine.BDDTrue
+
+    private final HashMap<Key, Key> unique;
+    private final HashMap<Long, Key> sets;
+    private long nextId = -1;
+
+    private static final class Key {
+        final long[] bounds; // l0, h0, l1, h1, ... strictly increasing
+        final int hash;
+        long id;
+        int refs = 0;
+        long bdd = -1; // the referenced translation, -1 until requested
+
+        Key(long[] bounds) {
+            this.bounds = bounds;
+            this.hash = Arrays.hashCode(bounds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bounds, ((Key) o).bounds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * @param width the number of destination bits, at most 62
+     */
+    IntervalSets(BDDBackend bdd, PrefixCode dst, int width) {
+        this.bdd = bdd;
+        this.dst = dst;
+        this.width = width;
+        this.all = new long[]{0, 1L << width};
+        this.unique = new HashMap<>();
+        this.sets = new HashMap<>();
+    }
+
+    private long[] bounds(long a) {
+        if (a == BDDEngine.BDDFalse) return new long[0];
+        if (a == BDDEngine.BDDTrue) return all;
+        return sets.get(a).bounds;
+    }
+
+    private long mk(long[] bounds) {
+        if (bounds.length == 0) return BDDEngine.BDDFalse;
+        if (Arrays.equals(bounds, all)) return BDDEngine.BDDTrue;
+        Key key = new Key(bounds);
+        Key ret = unique.get(key);
+        if (ret != null) return ret.id;
+        key.id = nextId--;
+        unique.put(key, key);
+        sets.put(key.id, key);
+        return key.id;
+    }
+
+    /**
+     * @return the (unreferenced) set of the first prefix bits of ip
+     */
+    long prefix(long ip, int prefix) {
+        long len = 1L << (width - prefix);
+        long lo = ip & -len;
+        return mk(new long[]{lo, lo + len});
+    }
+
+    /**
+     * Sweeps the boundaries of both sets, and emits a boundary wherever the result flips.
+     */
+    private long merge(long a, long b, int op) {
+        long[] x = bounds(a), y = bounds(b);
+        long[] ret = new long[x.length + y.length];
+        int i = 0, j = 0, n = 0;
+        boolean inX = false, inY = false, in = false;
+        while (i < x.length || j < y.length) {
+            long p = j == y.length || (i < x.length && x[i] < y[j]) ? x[i] : y[j];
+            if (i < x.length && x[i] == p) { inX = !inX; i++; }
+            if (j < y.length && y[j] == p) { inY = !inY; j++; }
+            boolean now = op == AND ? inX && inY : (op == OR ? inX || inY : inX && !inY);
+            if (now != in) {
+                ret[n++] = p;
+                in = now;
+            }
+        }
+        return mk(Arrays.copyOf(ret, n));
+    }
+
+    long and(long a, long b) {
+        return merge(a, b, AND);
+    }
+
+    long or(long a, long b) {
+        return merge(a, b, OR);
+    }
+
+    long diff(long a, long b) {
+        return merge(a, b, DIFF);
+    }
+
+    long not(long a) {
+        return merge(BDDEngine.BDDTrue, a, DIFF);
+    }
+
+    long ref(long a) {
+        if (a < 0) sets.get(a).refs++;
+        return a;
+    }
+
+    void deRef(long a) {
+        if (a >= 0) return;
+        Key key = sets.get(a);
+        if (key != null && key.refs > 0) key.refs--;
+    }
+
+    /**
+     * Marks the values of the destination bits [skip, skip + bits) which some interval of the set reaches.
+     */
+    void buckets(long a, int skip, int bits, BitSet out) {
+        long[] b = bounds(a);
+        int shift = width - skip - bits, n = 1 << bits;
+        for (int i = 0; i < b.length; i += 2) {
+            long l = b[i] >>> shift, h = (b[i + 1] - 1) >>> shift;
+            if (h - l >= n - 1) {
+                out.set(0, n);
+                return;
+            }
+            int lo = (int) (l & (n - 1)), hi = (int) (h & (n - 1));
+            if (lo <= hi) {
+                out.set(lo, hi + 1);
+            } else { // wraps around a change of the skipped bits
+                out.set(lo, n);
+                out.set(0, hi + 1);
+            }
+        }
+    }
+
+    /**
+     * @return the BDD of the set, which is owned by the set (the caller refs it if it outlives the set)
+     */
+    long toBdd(long a) {
+        if (a >= 0) return a;
+        Key key = sets.get(a);
+        if (key.bdd == -1) {
+            long ret = BDDEngine.BDDFalse;
+            for (int i = 0; i < key.bounds.length; i += 2) {
+                long block = dst.encodeRange(key.bounds[i], key.bounds[i + 1] - 1);
+                long t = bdd.ref(bdd.or(ret, block));
+                bdd.deRef(ret);
+                bdd.deRef(block);
+                ret = t;
+            }
+            key.bdd = ret;
+        }
+        return key.bdd;
+    }
+
+    /**
+     * Drops the sets which are no longer referenced, and releases their translations.
+     * Must be called when no operation is in flight, as BDDBackend.maybeGc().
+     */
+    void sweep() {
+        Iterator<Map.Entry<Long, Key>> it = sets.entrySet().iterator();
+        while (it.hasNext()) {
+            Key key = it.next().getValue();
+            if (key.refs > 0) continue;
+            if (key.bdd != -1) bdd.deRef(key.bdd);
+            unique.remove(key);
+            it.remove();
+        }
+    }
+
+    int size() {
+        return sets.size();
+    }
+}
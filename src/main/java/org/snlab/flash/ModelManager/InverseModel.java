@@ -2,6 +2,9 @@ package org.snlab.flash.ModelManager;
 
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.snlab.flash.ModelManager.Ports.Ports;
 import org.snlab.flash.ModelManager.Ports.PersistentPorts;
@@ -12,13 +15,30 @@ import org.snlab.network.Rule;
 
 public class InverseModel {
     public final BDDEngine bddEngine;
-    private int size = 32; // length of packet header
+    private final int size; // length of packet header (destination bits), 32 for IPv4 and 128 for IPv6
 
-    private final HashMap<Rule, Number> ruleToBddMatch;
-    private final HashMap<Device, IndexedRules> deviceToRules; // FIB snapshots
+    private RuleTable rules; // the rules of the data plane by their ids, with their matches
+    private HashMap<Device, IndexedRules> deviceToRules; // FIB snapshots
     public HashMap<Ports, Number> portsToPredicate; // network inverse model
+    private final Ports defaultPorts; // the only EC of an empty data plane
+    private HashMap<Port, HashSet<Number>> portToPredicates; // the inverted index of portsToPredicate, kept by update()
+    private HashMap<Port, Set<Number>> portToPredicateViews; // the read-only views of the sets of portToPredicates
+    // Copy-on-write state of forks (see fork): the models holding the rule table and the ECs (with their indexes), and the
+    // devices whose IndexedRules this model owns (null if it does not own deviceToRules either)
+    private AtomicInteger ruleHolders = new AtomicInteger(1), ecHolders = new AtomicInteger(1);
+    private HashSet<Device> ownedTries;
+    private boolean onIntervals; // whether the matches and predicates are interval sets, which may lag behind a fork's engine
+    private IndexedECs indexedECs; // null if update() scans every EC
+    private int indexSkip = 0; // the leading destination bits shared by all ECs, see skipIndexedBits
 
     private double s1 = 0, s1to2 = 0, s2 = 0, sports = 0;
+    private boolean batchedAggregation = false; // see ConflictFreeChanges(BDDEngine, boolean)
+    private boolean parallel = false; // only effective on a thread-safe BDD backend
+    private boolean adaptiveRebuild = false; // see planRebuild
+    private boolean inParallel = false; // the fine-grained timers are not updated by workers
+    private static final int PARALLEL_CHUNK = 256; // the smallest number of ECs transferred by a worker
+    private static final int EC_INDEX_BITS = 8; // the leading destination bits by which ECs are indexed
+    private static final int DELETE_OPS_PER_OVERLAP = 2, REBUILD_OPS_PER_RULE = 3; // BDD operations, see planRebuild
 
     public InverseModel(Network network) {
         this(network, new BDDEngine(32), new PersistentPorts());
@@ -26,7 +46,6 @@ public class InverseModel {
 
     public InverseModel(Network network, int size) {
         this(network, new BDDEngine(size), new PersistentPorts());
-        this.size = size;
     }
 
     public InverseModel(Network network, Ports base) {
@@ -35,30 +54,131 @@ public class InverseModel {
 
     public InverseModel(Network network, int size, Ports base) {
         this(network, new BDDEngine(size), base);
-        this.size = size;
+    }
+
+    public InverseModel(Network network, BDDBackend.Type type, Ports base) {
+        this(network, new BDDEngine(32, type), base);
+    }
+
+    public InverseModel(Network network, int size, BDDBackend.Type type, Ports base) {
+        this(network, new BDDEngine(size, type), base);
+    }
+
+    /**
+     * Sizes the BDD package to the initial rules of the network, so loading them does not regrow its table.
+     */
+    public InverseModel(Network network, int size, BDDBackend.Type type, BDDSizing sizing, Ports base) {
+        this(network, new BDDEngine(HeaderSchema.of(size), type, sizing), base);
     }
 
     public InverseModel(Network network, BDDEngine bddEngine, Ports base) {
         this.bddEngine = bddEngine;
+        this.size = bddEngine.getSize();
         this.deviceToRules = new HashMap<>();
-        this.ruleToBddMatch = new HashMap<>();
+        this.rules = new RuleTable();
+        this.portToPredicates = new HashMap<>();
+        this.portToPredicateViews = new HashMap<>();
 
         // Relabel every device as the index used by Ports, starting from 0
-        for (Device device : network.getAllDevices()) this.deviceToRules.put(device, new IndexedRules());
+        for (Device device : network.getAllDevices()) this.deviceToRules.put(device, new IndexedRules(bddEngine.getSchema()));
 
         // Each device has a default rule with default action.
         ArrayList<Port> key = new ArrayList<>();
         for (Device device : network.getAllDevices()) {
             Port p = device.getPort("default");
             key.add(p);
-            Rule rule = new Rule(device, 0, 0, -1, p);
-            ruleToBddMatch.put(rule, BDDEngine.BDDTrue);
-            deviceToRules.get(device).insert(rule, size);
+            Rule rule = size > 32 ? new Rule(device, 0L, 0L, 0, -1, p) : new Rule(device, 0, 0, -1, p);
+            int id = rules.add(rule);
+            rules.setMatch(id, BDDEngine.BDDTrue);
+            deviceToRules.get(device).insert(rule, id, size);
         }
 
         // The only one EC takes default actions.
+        this.defaultPorts = base.create(key, 0, key.size());
         this.portsToPredicate = new HashMap<>();
-        this.portsToPredicate.put(base.create(key, 0, key.size()), BDDEngine.BDDTrue);
+        this.portsToPredicate.put(defaultPorts, BDDEngine.BDDTrue);
+        this.ownedTries = new HashSet<>(deviceToRules.keySet());
+        this.onIntervals = bddEngine.isOnIntervals();
+        reindex();
+    }
+
+    private InverseModel(InverseModel base) {
+        this.bddEngine = base.bddEngine;
+        this.size = base.size;
+        this.rules = base.rules;
+        this.deviceToRules = base.deviceToRules;
+        this.portsToPredicate = base.portsToPredicate;
+        this.defaultPorts = base.defaultPorts;
+        this.portToPredicates = base.portToPredicates;
+        this.portToPredicateViews = base.portToPredicateViews;
+        this.indexedECs = base.indexedECs;
+        this.indexSkip = base.indexSkip;
+        this.batchedAggregation = base.batchedAggregation;
+        this.parallel = base.parallel;
+        this.adaptiveRebuild = base.adaptiveRebuild;
+        this.onIntervals = base.onIntervals;
+        this.ruleHolders = base.ruleHolders;
+        this.ecHolders = base.ecHolders;
+        this.ruleHolders.incrementAndGet();
+        this.ecHolders.incrementAndGet();
+        base.ownedTries = null;
+    }
+
+    /**
+     * Forks the model in O(1): the fork shares the rules, the ECs and their BDDs with this model, and each of them copies
+     * what it changes on its first write, i.e., the rule table and the ECs as a whole (referencing their BDDs again), and
+     * the IndexedRules of a device once a rule of the device changes.
+     * Both models keep using the same BDDEngine, so they may only be updated at the same time on a thread-safe backend,
+     * while predicates of the two are comparable, e.g., for what-if analysis of a change set, or for a later epoch.
+     * The garbage collection of one is skipped while the other is in a miniBatch or update (see BDDEngine.maybeGc).
+     * @return a model of the current data plane, which diverges from this one by later batches
+     */
+    public InverseModel fork() {
+        return new InverseModel(this);
+    }
+
+    /**
+     * Copies the rule table before it is written, if it is shared with a fork.
+     */
+    private void ownRules() {
+        if (ruleHolders.get() == 1) return;
+        RuleTable t = rules.copy();
+        for (int id = 0; id < t.end(); id++) if (t.isHeld(id)) bddEngine.ref(t.getMatch(id));
+        if (ruleHolders.decrementAndGet() == 0) { // the other holders have copied it meanwhile
+            for (int id = 0; id < rules.end(); id++) if (rules.isHeld(id)) bddEngine.deRef(rules.getMatch(id));
+        }
+        ruleHolders = new AtomicInteger(1);
+        rules = t;
+    }
+
+    /**
+     * @return the IndexedRules of a device, which is copied before it is written if it is shared with a fork
+     */
+    private IndexedRules ownTrie(Device device) {
+        if (ownedTries == null) {
+            deviceToRules = new HashMap<>(deviceToRules);
+            ownedTries = new HashSet<>();
+        }
+        if (ownedTries.add(device)) deviceToRules.put(device, deviceToRules.get(device).copy());
+        return deviceToRules.get(device);
+    }
+
+    /**
+     * Copies the ECs and rebuilds their indexes before they are written, if they are shared with a fork.
+     */
+    private void ownECs() {
+        if (ecHolders.get() == 1) return;
+        HashMap<Ports, Number> t = new HashMap<>(portsToPredicate);
+        for (Number predicate : t.values()) bddEngine.ref(predicate.longValue());
+        if (ecHolders.decrementAndGet() == 0) {
+            for (Number predicate : portsToPredicate.values()) bddEngine.deRef(predicate.longValue());
+        }
+        ecHolders = new AtomicInteger(1);
+        portsToPredicate = t;
+        portToPredicates = new HashMap<>();
+        portToPredicateViews = new HashMap<>();
+        if (indexedECs != null) indexedECs = newIndexedECs();
+        reindex();
     }
 
     public ConflictFreeChanges insertMiniBatch(List<Rule> insertions) {
@@ -72,7 +192,17 @@ public class InverseModel {
      * @return the change \chi
      */
     public ConflictFreeChanges miniBatch(List<Rule> insertions, List<Rule> deletions) {
+        bddEngine.beginOperations();
+        try {
+            return identifyChanges(insertions, deletions);
+        } finally {
+            bddEngine.endOperations();
+        }
+    }
+
+    private ConflictFreeChanges identifyChanges(List<Rule> insertions, List<Rule> deletions) {
         s1 -= System.nanoTime();
+        ownRules();
         HashSet<Rule> inserted = new HashSet<>();
         HashSet<Rule> deleted = new HashSet<>(deletions);
         for (Rule rule : insertions) {
@@ -81,30 +211,265 @@ public class InverseModel {
                 continue;
             }
             inserted.add(rule);
-            ruleToBddMatch.put(rule, bddEngine.encodeIpv4(rule.getMatch(), rule.getPrefix(), rule.getSrc(), rule.getSrcSuffix()));
-            deviceToRules.get(rule.getDevice()).insert(rule, size);
+            int id = rules.add(rule);
+            long match = rules.getMatch(id);
+            rules.setMatch(id, bddEngine.encode(rule));
+            bddEngine.deRef(match);
+            ownTrie(rule.getDevice()).insert(rule, id, size);
+        }
+        if (onIntervals && !bddEngine.isOnIntervals()) leaveIntervals();
+        // Notice recomputing the #ECs can be faster than rule-deleting if many rules are deleted (especially when all rules are deleted),
+        // the devices (or the whole model) for which it is are rebuilt instead if enabled, which it is not by default for the purpose of evaluation.
+        HashSet<Device> toRebuild = adaptiveRebuild ? planRebuild(deleted) : new HashSet<>();
+        boolean whole = !toRebuild.isEmpty() && toRebuild.size() == deviceToRules.size();
+        HashMap<Device, int[]> rebuilt = new HashMap<>(); // to the rules before the batch, null once the model is reset
+        for (Device device : toRebuild) {
+            int[] before = whole ? null : deviceToRules.get(device).getAll();
+            if (before != null) before = Arrays.stream(before).filter(id -> !inserted.contains(rules.getRule(id))).toArray();
+            rebuilt.put(device, before);
+        }
+        for (Rule rule : deleted) {
+            int id = rules.getId(rule);
+            if (id >= 0) ownTrie(rule.getDevice()).remove(rule, id, size);
+        }
+        if (whole) reset();
+        HashSet<Rule> toInsert = new HashSet<>(inserted), toDelete = new HashSet<>(deleted);
+        toInsert.removeIf(rule -> rebuilt.containsKey(rule.getDevice()));
+        toDelete.removeIf(rule -> rebuilt.containsKey(rule.getDevice()));
+
+        ConflictFreeChanges ret = new ConflictFreeChanges(bddEngine, batchedAggregation);
+        if (parallel && bddEngine.isThreadSafe()) {
+            identifyChangesParallel(toInsert, toDelete, rebuilt, ret);
+        } else {
+            IndexedRules.Cursor cursor = new IndexedRules.Cursor();
+            for (Rule rule : toDelete) identifyChangesDeletion(rule, cursor, ret);
+            for (Rule rule : toInsert) identifyChangesInsert(rules.getId(rule), cursor, ret);
+            for (Map.Entry<Device, int[]> entry : rebuilt.entrySet()) rebuildDevice(entry.getKey(), entry.getValue(), ret);
+        }
+        for (Rule rule : deleted) {
+            int id = rules.getId(rule);
+            if (id < 0) continue;
+            bddEngine.deRef(rules.getMatch(id));
+            rules.remove(id);
         }
-        for (Rule rule : deleted) deviceToRules.get(rule.getDevice()).remove(rule, size);
-
-        ConflictFreeChanges ret = new ConflictFreeChanges(bddEngine);
-        // Notice recomputing the #ECs can be faster than rule-deleting if many rules are deleted (especially when all rules are deleted).
-        // For the purpose of evaluation, we did not go through such short-cut.
-        for (Rule rule : deleted) identifyChangesDeletion(rule, ret);
-        for (Rule rule : inserted) identifyChangesInsert(rule, ret);
         s1 += System.nanoTime();
         return ret;
     }
 
-    private int getHit(Rule rule) {
-        int hit = bddEngine.ref(ruleToBddMatch.get(rule).intValue());
-        for (Rule r : deviceToRules.get(rule.getDevice()).getAllOverlappingWith(rule, size)) {
-            if (!ruleToBddMatch.containsKey(r)) continue;
+    /**
+     * A rule only overlaps with the rules of its own device, so devices are processed by the workers of the common
+     * ForkJoin pool, each with its own changes, which are merged afterwards.
+     * Workers only read the rule table (the matches of deleted rules are released after all workers are done),
+     * and each IndexedRules is only touched by the worker of its device, which reads its overlap queries by one cursor.
+     */
+    private void identifyChangesParallel(HashSet<Rule> inserted, HashSet<Rule> deleted,
+                                         HashMap<Device, int[]> rebuilt, ConflictFreeChanges ret) {
+        HashMap<Device, ArrayList<Rule>> deviceToDeleted = new HashMap<>(), deviceToInserted = new HashMap<>();
+        for (Rule rule : deleted) deviceToDeleted.computeIfAbsent(rule.getDevice(), k -> new ArrayList<>()).add(rule);
+        for (Rule rule : inserted) deviceToInserted.computeIfAbsent(rule.getDevice(), k -> new ArrayList<>()).add(rule);
+        HashSet<Device> devices = new HashSet<>(deviceToDeleted.keySet());
+        devices.addAll(deviceToInserted.keySet());
+        devices.addAll(rebuilt.keySet());
+
+        inParallel = true;
+        List<ConflictFreeChanges> parts = devices.parallelStream().map(device -> {
+            ConflictFreeChanges part = new ConflictFreeChanges(bddEngine, batchedAggregation);
+            if (rebuilt.containsKey(device)) {
+                rebuildDevice(device, rebuilt.get(device), part);
+                return part;
+            }
+            IndexedRules.Cursor cursor = new IndexedRules.Cursor();
+            for (Rule rule : deviceToDeleted.getOrDefault(device, new ArrayList<>())) identifyChangesDeletion(rule, cursor, part);
+            for (Rule rule : deviceToInserted.getOrDefault(device, new ArrayList<>())) identifyChangesInsert(rules.getId(rule), cursor, part);
+            return part;
+        }).collect(Collectors.toList());
+        inParallel = false;
+
+        s1 += System.nanoTime();
+        s1to2 -= System.nanoTime();
+        for (ConflictFreeChanges part : parts) ret.merge(part);
+        s1to2 += System.nanoTime();
+        s1 -= System.nanoTime();
+    }
+
+    /**
+     * Deleting a rule costs about DELETE_OPS_PER_OVERLAP BDD operations per overlapping rule (its hit, then its share of
+     * every lower rule), while rebuilding a device (see rebuildDevice) costs about REBUILD_OPS_PER_RULE per rule before
+     * and after the batch, plus one per port.
+     * Once the model is reset to its default EC, a device is rebuilt from its rules after the batch only, thus the model
+     * is rebuilt as a whole (then every EC is transferred again) if that is cheaper than handling every device with
+     * deletions on its own, e.g., when all tables are withdrawn.
+     * Must be called before the deleted rules are removed from the IndexedRules.
+     * @return the devices to be rebuilt, all devices if the model is rebuilt as a whole
+     */
+    private HashSet<Device> planRebuild(HashSet<Rule> deleted) {
+        HashMap<Device, Long> deviceToCost = new HashMap<>();
+        HashMap<Device, Integer> deviceToDeleted = new HashMap<>();
+        for (Rule rule : deleted) {
+            if (rules.getId(rule) < 0) continue;
+            long cost = (long) DELETE_OPS_PER_OVERLAP * deviceToRules.get(rule.getDevice()).countOverlappingWith(rule, size);
+            deviceToCost.merge(rule.getDevice(), cost, Long::sum);
+            deviceToDeleted.merge(rule.getDevice(), 1, Integer::sum);
+        }
+
+        HashSet<Device> ret = new HashSet<>();
+        long plan = 0, whole = portsToPredicate.size();
+        for (Map.Entry<Device, IndexedRules> entry : deviceToRules.entrySet()) {
+            long before = entry.getValue().size(), after = before - deviceToDeleted.getOrDefault(entry.getKey(), 0);
+            whole += REBUILD_OPS_PER_RULE * after;
+            Long cost = deviceToCost.get(entry.getKey());
+            if (cost == null) continue;
+            long rebuild = REBUILD_OPS_PER_RULE * (before + after) + entry.getKey().getPorts().size();
+            if (rebuild < cost) ret.add(entry.getKey());
+            plan += Math.min(rebuild, cost);
+        }
+        return whole < plan ? new HashSet<>(deviceToRules.keySet()) : ret;
+    }
+
+    /**
+     * Puts the model back to its only default EC, before every device is rebuilt in the same batch.
+     */
+    private void reset() {
+        ownECs();
+        for (Number predicate : portsToPredicate.values()) bddEngine.deRef(predicate.longValue());
+        portsToPredicate = new HashMap<>();
+        portsToPredicate.put(defaultPorts, BDDEngine.BDDTrue);
+        reindex();
+    }
 
-            if (r.getPriority() > rule.getPriority()) {
-                int newHit = bddEngine.diff(hit, ruleToBddMatch.get(r).intValue());
+    /**
+     * @param ids the rules of a device by descending priority, as returned by IndexedRules
+     * @return the referenced predicate forwarded to every port, where the hit of a rule is its match minus the matches
+     *         of all rules above it (as getHit)
+     */
+    private HashMap<Port, Long> forwarding(int[] ids) {
+        HashMap<Port, Long> ret = new HashMap<>();
+        long above = BDDEngine.BDDFalse, covered = BDDEngine.BDDFalse; // the matches of the higher rules, and of all so far
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            if (i > 0 && rules.getPriority(id) != rules.getPriority(ids[i - 1])) { // ties do not shadow each other
+                bddEngine.deRef(above);
+                above = bddEngine.ref(covered);
+                if (above == BDDEngine.BDDTrue) break;
+            }
+            long match = rules.getMatch(id);
+            long hit = bddEngine.diff(match, above), t = bddEngine.or(covered, match);
+            bddEngine.deRef(covered);
+            covered = t;
+            if (hit == BDDEngine.BDDFalse) continue;
+            Port port = rules.getOutPort(id);
+            Long prev = ret.get(port);
+            if (prev != null) {
+                ret.put(port, bddEngine.or(prev, hit));
+                bddEngine.deRef(prev);
                 bddEngine.deRef(hit);
-                hit = newHit;
+            } else {
+                ret.put(port, hit);
             }
+        }
+        bddEngine.deRef(above);
+        bddEngine.deRef(covered);
+        return ret;
+    }
+
+    /**
+     * Recomputes the forwarding of a device from its rules before and after the batch, and moves what changed.
+     * @param before the rules before the batch, null if the model is reset (everything is forwarded to the default port)
+     */
+    private void rebuildDevice(Device device, int[] before, ConflictFreeChanges ret) {
+        HashMap<Port, Long> old = new HashMap<>();
+        if (before == null) {
+            old.put(device.getPort("default"), BDDEngine.BDDTrue);
+        } else {
+            old = forwarding(before);
+        }
+        HashMap<Port, Long> now = forwarding(deviceToRules.get(device).getAll());
+
+        // only the new ports matter to the changes, as for an inserted rule
+        for (Map.Entry<Port, Long> entry : now.entrySet()) {
+            long delta = bddEngine.diff(entry.getValue(), old.getOrDefault(entry.getKey(), BDDEngine.BDDFalse));
+            if (delta != BDDEngine.BDDFalse) {
+                addChange(ret, delta, null, entry.getKey());
+            } else {
+                bddEngine.deRef(delta);
+            }
+        }
+        for (long t : old.values()) bddEngine.deRef(t);
+        for (long t : now.values()) bddEngine.deRef(t);
+    }
+
+    /**
+     * @param adaptiveRebuild whether devices with costly deletions are rebuilt from their rules, off by default so the
+     *                        evaluated deletion is the original one; see planRebuild
+     */
+    public void setAdaptiveRebuild(boolean adaptiveRebuild) {
+        this.adaptiveRebuild = adaptiveRebuild;
+    }
+
+    /**
+     * @param parallel whether the stages of a batch run in parallel if the BDD backend is thread-safe, off by default so
+     *                 the evaluated stages are single-threaded
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    private void addChange(ConflictFreeChanges ret, Number delta, Port oldPort, Port newPort) {
+        if (inParallel) {
+            ret.add(delta, oldPort, newPort);
+            return;
+        }
+        s1 += System.nanoTime();
+        s1to2 -= System.nanoTime();
+        ret.add(delta, oldPort, newPort);
+        s1to2 += System.nanoTime();
+        s1 -= System.nanoTime();
+    }
+
+    /**
+     * A multi-field rule has moved the engine from interval sets to BDDs, so all predicates are moved as well
+     * (the identification of changes compares predicates by their handles).
+     */
+    private void leaveIntervals() {
+        onIntervals = false;
+        ownECs();
+        for (int id = 0; id < rules.end(); id++) {
+            if (!rules.isHeld(id)) continue;
+            long t = rules.getMatch(id);
+            rules.setMatch(id, bddEngine.asBdd(t));
+            bddEngine.deRef(t);
+        }
+        for (Map.Entry<Ports, Number> entry : portsToPredicate.entrySet()) {
+            long t = entry.getValue().longValue();
+            entry.setValue(bddEngine.asBdd(t));
+            bddEngine.deRef(t);
+        }
+        reindex();
+    }
+
+    /**
+     * Whether the changes of the rule are read from the trie of its device (see IndexedRules.lpmHit): the device only
+     * has LPM rules, and so does the rule itself, as a deleted rule is removed from the trie before its changes are.
+     */
+    private boolean onLpm(IndexedRules trie, Rule rule) {
+        return trie.isLpm() && trie.isLpm(rule, size) && !bddEngine.isOnIntervals();
+    }
+
+    /**
+     * The rules above are subtracted from the highest one, so a rule shadowed by a few high rules stops early.
+     * On a device with LPM rules only, the hit is read from the trie instead (see onLpm).
+     */
+    private long getHit(int id, IndexedRules.Cursor cursor) {
+        Rule rule = rules.getRule(id);
+        IndexedRules trie = deviceToRules.get(rule.getDevice());
+        if (onLpm(trie, rule)) return trie.lpmHit(bddEngine, rule, rules.getPriority(id), size);
+
+        long hit = bddEngine.ref(rules.getMatch(id));
+        trie.overlappingAbove(rule, rules.getPriority(id), size, cursor);
+        while (cursor.hasNext()) {
+            long newHit = bddEngine.diff(hit, rules.getMatch(cursor.next()));
+            bddEngine.deRef(hit);
+            hit = newHit;
 
             if (hit == BDDEngine.BDDFalse) break;
         }
@@ -112,63 +477,177 @@ public class InverseModel {
     }
 
     /**
-     * @param rule an inserted rule
-     * @param ret  the pointer to the value returned by this function
+     * @param id  the id of an inserted rule
+     * @param ret the pointer to the value returned by this function
      */
-    private void identifyChangesInsert(Rule rule, ConflictFreeChanges ret) {
-        int hit = getHit(rule);
+    private void identifyChangesInsert(int id, IndexedRules.Cursor cursor, ConflictFreeChanges ret) {
+        long hit = getHit(id, cursor);
         if (hit != BDDEngine.BDDFalse) {
-            s1 += System.nanoTime();
-            s1to2 -= System.nanoTime();
-            ret.add(hit, null, rule.getOutPort());
-            s1to2 += System.nanoTime();
-            s1 -= System.nanoTime();
+            addChange(ret, hit, null, rules.getOutPort(id));
         } else {
             bddEngine.deRef(hit);
         }
     }
 
-    private void identifyChangesDeletion(Rule rule, ConflictFreeChanges ret) {
-        if (ruleToBddMatch.get(rule) == null) return; // cannot find the rule to be removed
+    private void identifyChangesDeletion(Rule rule, IndexedRules.Cursor cursor, ConflictFreeChanges ret) {
+        int id = rules.getId(rule);
+        if (id < 0) return; // cannot find the rule to be removed
 
         IndexedRules targetNode = deviceToRules.get(rule.getDevice());
-        ArrayList<Rule> sorted = targetNode.getAllOverlappingWith(rule, size);
-        Comparator<Rule> comp = (Rule lhs, Rule rhs) -> rhs.getPriority() - lhs.getPriority();
-        sorted.sort(comp);
+        int port = rules.getPortId(id);
+        long hit = getHit(id, cursor);
+        if (onLpm(targetNode, rule)) { // the whole hit falls to the longest prefix below
+            int r = targetNode.lpmLower(rule, rules.getPriority(id), size);
+            if (r >= 0 && hit != BDDEngine.BDDFalse && rules.getPortId(r) != port) {
+                addChange(ret, hit, rules.getOutPort(id), rules.getOutPort(r));
+            } else {
+                bddEngine.deRef(hit);
+            }
+            targetNode.remove(rule, id, size);
+            return;
+        }
+        targetNode.overlappingBelow(rule, rules.getPriority(id), size, cursor);
+        while (cursor.hasNext()) {
+            if (hit == BDDEngine.BDDFalse) break; // the rest of the hit has been taken by higher rules
+            int r = cursor.next();
 
-        int hit = getHit(rule);
-        for (Rule r : sorted) {
-            if (r.getPriority() < rule.getPriority()) {
-                int intersection = bddEngine.and(ruleToBddMatch.get(r).intValue(), hit);
+            long intersection = bddEngine.and(rules.getMatch(r), hit);
 
-                int newHit = bddEngine.diff(hit, intersection);
-                bddEngine.deRef(hit);
-                hit = newHit;
-
-                if (intersection != BDDEngine.BDDFalse && r.getOutPort() != rule.getOutPort()) {
-                    s1 += System.nanoTime();
-                    s1to2 -= System.nanoTime();
-                    ret.add(intersection, rule.getOutPort(), r.getOutPort());
-                    s1to2 += System.nanoTime();
-                    s1 -= System.nanoTime();
-                } else {
-                    bddEngine.deRef(intersection);
-                }
+            long newHit = bddEngine.diff(hit, intersection);
+            bddEngine.deRef(hit);
+            hit = newHit;
+
+            if (intersection != BDDEngine.BDDFalse && rules.getPortId(r) != port) {
+                addChange(ret, intersection, rules.getOutPort(id), rules.getOutPort(r));
+            } else {
+                bddEngine.deRef(intersection);
             }
         }
-        targetNode.remove(rule, size);
-        bddEngine.deRef(ruleToBddMatch.get(rule).intValue());
-        ruleToBddMatch.remove(rule);
-        bddEngine.deRef(hit);
+        targetNode.remove(rule, id, size);
+        bddEngine.deRef(hit); // the match is released by miniBatch, once no worker may read it
+    }
+
+
+    /**
+     * Moves the part of every EC within delta to the ports with changes.
+     * @param delta a referenced predicate, which is consumed
+     */
+    private void transfer(Iterable<Map.Entry<Ports, Number>> ecs, long delta, TreeMap<Integer, Port> changes,
+                          HashMap<Ports, Number> newPortsToPreds, Set<Number> transferredECs) {
+        for (Map.Entry<Ports, Number> entry : ecs) {
+            Ports ports = entry.getKey();
+            Number predicate = entry.getValue();
+            if (delta == BDDEngine.BDDFalse) { // change already becomes empty
+                insertPredicate(newPortsToPreds, ports, predicate);
+                continue;
+            }
+
+            long intersection = bddEngine.and(predicate.longValue(), delta);
+            if (intersection == BDDEngine.BDDFalse) { // EC is not affected by change
+                insertPredicate(newPortsToPreds, ports, predicate);
+                bddEngine.deRef(intersection);
+                continue;
+            } else {
+                // clean up the intermediate variables
+                long t = bddEngine.diff(delta, intersection);
+                bddEngine.deRef(delta);
+                delta = t;
+            }
+
+
+            if (intersection != predicate.longValue()) {
+                // EC is partially affected by change, which causes split
+                // transferredECs.add(intersection);
+                insertPredicate(newPortsToPreds, ports, bddEngine.diff(predicate.longValue(), intersection));
+            }
+            // The intersection is transferred
+            transferredECs.add(intersection);
+            if (!inParallel) sports -= System.nanoTime();
+            Ports portsT = ports.createWithChanges(changes);
+            if (!inParallel) sports += System.nanoTime();
+            insertPredicate(newPortsToPreds, portsT, intersection);
+            bddEngine.deRef(predicate.longValue());
+        }
+
+        bddEngine.deRef(delta);
+    }
+
+    /**
+     * Splits the ECs into chunks which are transferred by the workers of the common ForkJoin pool, each with
+     * its own copy of delta and its own table; the tables are merged in the order of the chunks afterwards.
+     * Predicates are canonical, so the model (and the #ECs) is the same as the one of a serial transfer.
+     */
+    private void transferParallel(List<Map.Entry<Ports, Number>> ecs, long delta, TreeMap<Integer, Port> changes,
+                                  HashMap<Ports, Number> newPortsToPreds, Set<Number> transferredECs) {
+        int chunk = Math.max(PARALLEL_CHUNK, (ecs.size() + 4 * ForkJoinPool.getCommonPoolParallelism() - 1) / (4 * ForkJoinPool.getCommonPoolParallelism()));
+        ArrayList<List<Map.Entry<Ports, Number>>> chunks = new ArrayList<>();
+        for (int l = 0; l < ecs.size(); l += chunk) {
+            chunks.add(ecs.subList(l, Math.min(l + chunk, ecs.size())));
+            bddEngine.ref(delta);
+        }
+        bddEngine.deRef(delta);
+
+        inParallel = true;
+        List<HashMap<Ports, Number>> tables = chunks.parallelStream().map(part -> {
+            HashMap<Ports, Number> table = new HashMap<>();
+            HashSet<Number> transferred = new HashSet<>();
+            transfer(part, delta, changes, table, transferred);
+            synchronized (transferredECs) {
+                transferredECs.addAll(transferred);
+            }
+            return table;
+        }).collect(Collectors.toList());
+        inParallel = false;
+
+        for (HashMap<Ports, Number> table : tables)
+            for (Map.Entry<Ports, Number> entry : table.entrySet()) insertPredicate(newPortsToPreds, entry.getKey(), entry.getValue());
     }
 
+    /**
+     * Only the ECs sharing a bucket with delta (see IndexedECs) are transferred, into a table of their own which then
+     * replaces them in portsToPredicate; every other EC stays in place without any BDD operation.
+     * @param delta a referenced predicate, which is consumed
+     */
+    private void transferCandidates(long delta, TreeMap<Integer, Port> changes, Set<Number> transferredECs) {
+        ArrayList<Map.Entry<Ports, Number>> ecs = new ArrayList<>();
+        for (Ports ports : indexedECs.candidates(delta)) ecs.add(new AbstractMap.SimpleEntry<>(ports, portsToPredicate.get(ports)));
+        HashMap<Ports, Number> table = new HashMap<>();
+        if (parallel && bddEngine.isThreadSafe() && ecs.size() >= 2 * PARALLEL_CHUNK) {
+            transferParallel(ecs, delta, changes, table, transferredECs);
+        } else {
+            transfer(ecs, delta, changes, table, transferredECs);
+        }
+
+        // All changed ECs are unindexed before any is indexed, since the old predicate of one may be the new one of another
+        for (Map.Entry<Ports, Number> ec : ecs) {
+            if (ec.getValue().equals(table.get(ec.getKey()))) { // not affected
+                table.remove(ec.getKey());
+                continue;
+            }
+            portsToPredicate.remove(ec.getKey());
+            unindex(ec.getKey(), ec.getValue());
+            indexedECs.remove(ec.getKey());
+        }
+        for (Map.Entry<Ports, Number> entry : table.entrySet()) {
+            Number predicate = entry.getValue(), t = portsToPredicate.get(entry.getKey());
+            if (t != null) { // moved to the ports of an EC which is not a candidate
+                unindex(entry.getKey(), t);
+                predicate = bddEngine.or(t.longValue(), predicate.longValue());
+                bddEngine.deRef(t.longValue());
+                bddEngine.deRef(entry.getValue().longValue());
+            }
+            portsToPredicate.put(entry.getKey(), predicate);
+            index(entry.getKey(), predicate);
+            indexedECs.add(entry.getKey(), predicate);
+        }
+    }
 
     private void insertPredicate(HashMap<Ports, Number> newPortsToPreds, Ports newPorts, Number predicate) {
         if (newPortsToPreds.containsKey(newPorts)) {
             Number t = newPortsToPreds.get(newPorts);
-            newPortsToPreds.replace(newPorts, bddEngine.or(t.intValue(), predicate.intValue()));
-            bddEngine.deRef(predicate.intValue());
-            bddEngine.deRef(t.intValue());
+            newPortsToPreds.replace(newPorts, bddEngine.or(t.longValue(), predicate.longValue()));
+            bddEngine.deRef(predicate.longValue());
+            bddEngine.deRef(t.longValue());
         } else {
             newPortsToPreds.put(newPorts, predicate);
         }
@@ -182,57 +661,43 @@ public class InverseModel {
      * @return -
      */
     public HashSet<Number> update(ConflictFreeChanges conflictFreeChanges) {
+        HashSet<Number> ret;
+        bddEngine.beginOperations();
+        try {
+            ret = transform(conflictFreeChanges);
+        } finally {
+            bddEngine.endOperations();
+        }
+        bddEngine.maybeGc();
+        return ret;
+    }
+
+    private HashSet<Number> transform(ConflictFreeChanges conflictFreeChanges) {
         s1to2 -= System.nanoTime();
         conflictFreeChanges.aggrBDDs();
         s1to2 += System.nanoTime();
 
 
         s2 -= System.nanoTime();
+        if (!conflictFreeChanges.getAll().isEmpty()) ownECs();
         HashSet<Number> transferredECs = new HashSet<>();
+        HashMap<Ports, Number> oldPortsToPredicate = portsToPredicate;
 
         for (Map.Entry<Number, TreeMap<Integer, Port>> entryI : conflictFreeChanges.getAll().entrySet()) {
-            Number delta = entryI.getKey();
-            bddEngine.ref(delta.intValue());
-
+            long delta = bddEngine.ref(entryI.getKey().longValue());
+            if (indexedECs != null) {
+                transferCandidates(delta, entryI.getValue(), transferredECs);
+                continue;
+            }
             HashMap<Ports, Number> newPortsToPreds = new HashMap<>();
-            for (Map.Entry<Ports, Number> entry : portsToPredicate.entrySet()) {
-                Ports ports = entry.getKey();
-                Number predicate = entry.getValue();
-                if (delta.intValue() == BDDEngine.BDDFalse) { // change already becomes empty
-                    insertPredicate(newPortsToPreds, ports, predicate);
-                    continue;
-                }
-
-                int intersection = bddEngine.and(predicate.intValue(), delta.intValue());
-                if (intersection == BDDEngine.BDDFalse) { // EC is not affected by change
-                    insertPredicate(newPortsToPreds, ports, predicate);
-                    bddEngine.deRef(intersection);
-                    continue;
-                } else {
-                    // clean up the intermediate variables
-                    int t = bddEngine.diff(delta.intValue(), intersection);
-                    bddEngine.deRef(delta.intValue());
-                    delta = t;
-                }
-
-
-                if (intersection != predicate.intValue()) {
-                    // EC is partially affected by change, which causes split
-                    // transferredECs.add(intersection);
-                    insertPredicate(newPortsToPreds, ports, bddEngine.diff(predicate.intValue(), intersection));
-                }
-                // The intersection is transferred
-                transferredECs.add(intersection);
-                sports -= System.nanoTime();
-                Ports portsT = ports.createWithChanges(entryI.getValue());
-                sports += System.nanoTime();
-                insertPredicate(newPortsToPreds, portsT, intersection);
-                bddEngine.deRef(predicate.intValue());
+            if (parallel && bddEngine.isThreadSafe() && portsToPredicate.size() >= 2 * PARALLEL_CHUNK) {
+                transferParallel(new ArrayList<>(portsToPredicate.entrySet()), delta, entryI.getValue(), newPortsToPreds, transferredECs);
+            } else {
+                transfer(portsToPredicate.entrySet(), delta, entryI.getValue(), newPortsToPreds, transferredECs);
             }
-
-            bddEngine.deRef(delta.intValue());
             portsToPredicate = newPortsToPreds;
         }
+        if (indexedECs == null) updateIndex(oldPortsToPredicate);
         s2 += System.nanoTime();
 
         // Manually deref BDDs used by Changes since its deconstructor doesn't handle this.
@@ -240,13 +705,133 @@ public class InverseModel {
         return transferredECs;
     }
 
-    public HashMap<Port, HashSet<Number>> getPortToPredicate() {
-        HashMap<Port, HashSet<Number>> ret = new HashMap<>();
+    Ports getDefaultPorts() {
+        return defaultPorts;
+    }
+
+    RuleTable getRules() {
+        return rules;
+    }
+
+    /**
+     * Puts back a rule of a checkpoint (see ModelCheckpoint) with its referenced match, default rules are already in place.
+     */
+    void restoreRule(Rule rule, long match) {
+        if (rules.getId(rule) >= 0) {
+            bddEngine.deRef(match);
+            return;
+        }
+        ownRules();
+        int id = rules.add(rule);
+        rules.setMatch(id, match);
+        ownTrie(rule.getDevice()).insert(rule, id, size);
+    }
+
+    /**
+     * @param batchedAggregation whether the deltas of a port are united by a balanced tree or one by one (the default, as
+     *                           evaluated)
+     */
+    public void setBatchedAggregation(boolean batchedAggregation) {
+        this.batchedAggregation = batchedAggregation;
+    }
+
+    /**
+     * @param indexed whether update() only intersects a change with the ECs sharing a bucket of leading destination bits
+     *                with it (if the BDD package exposes its nodes) or with every EC (the default, as evaluated)
+     */
+    public void setIndexedECs(boolean indexed) {
+        if (!indexed) {
+            indexedECs = null;
+        } else if (indexedECs == null && bddEngine.getBackend().exposesNodes()) {
+            ownECs();
+            indexedECs = newIndexedECs();
+            reindex();
+        }
+    }
+
+    /**
+     * Indexes ECs by the destination bits after the first skip ones, e.g., the prefix of a shard (see ShardedInverseModel),
+     * where the pieces of shorter rules are still LPM rules (see IndexedRules.isLpm); called before any update.
+     */
+    void skipIndexedBits(int skip) {
+        indexSkip = skip;
+        for (Device device : deviceToRules.keySet()) ownTrie(device).setSkip(skip);
+        if (indexedECs != null) {
+            ownECs();
+            indexedECs = newIndexedECs();
+            reindex();
+        }
+    }
+
+    /**
+     * @return the index of the ECs, null if update() scans every EC
+     */
+    IndexedECs getIndexedECs() {
+        return indexedECs;
+    }
+
+    private IndexedECs newIndexedECs() {
+        return new IndexedECs(bddEngine, indexSkip, Math.min(EC_INDEX_BITS, size - indexSkip));
+    }
+
+    /**
+     * Only the ECs whose ports or predicate changed are touched, i.e., the transferred ECs and the ones they were split from,
+     * instead of rebuilding the index from every EC. Entries are removed before added, since a handle may be reused.
+     */
+    private void updateIndex(HashMap<Ports, Number> oldPortsToPredicate) {
+        for (Map.Entry<Ports, Number> entry : oldPortsToPredicate.entrySet())
+            if (!entry.getValue().equals(portsToPredicate.get(entry.getKey()))) unindex(entry.getKey(), entry.getValue());
         for (Map.Entry<Ports, Number> entry : portsToPredicate.entrySet())
-            for (Port p : entry.getKey().getAll()) {
-                ret.putIfAbsent(p, new HashSet<>());
-                ret.get(p).add(entry.getValue());
+            if (!entry.getValue().equals(oldPortsToPredicate.get(entry.getKey()))) index(entry.getKey(), entry.getValue());
+    }
+
+    private void index(Ports ports, Number predicate) {
+        for (Port p : ports.getAll()) {
+            HashSet<Number> predicates = portToPredicates.get(p);
+            if (predicates == null) {
+                portToPredicates.put(p, predicates = new HashSet<>());
+                portToPredicateViews.put(p, Collections.unmodifiableSet(predicates));
+            }
+            predicates.add(predicate);
+        }
+    }
+
+    private void unindex(Ports ports, Number predicate) {
+        for (Port p : ports.getAll()) {
+            HashSet<Number> predicates = portToPredicates.get(p);
+            if (predicates == null) continue;
+            predicates.remove(predicate);
+            if (predicates.isEmpty()) {
+                portToPredicates.remove(p);
+                portToPredicateViews.remove(p);
             }
+        }
+    }
+
+    /**
+     * Rebuilds the indexes, after portsToPredicate is replaced as a whole.
+     */
+    void reindex() {
+        portToPredicates.clear();
+        portToPredicateViews.clear();
+        if (indexedECs != null) indexedECs.clear();
+        for (Map.Entry<Ports, Number> entry : portsToPredicate.entrySet()) {
+            index(entry.getKey(), entry.getValue());
+            if (indexedECs != null) indexedECs.add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return a read-only view of the predicates (ECs) forwarded to every port (down to the sets), which changes with every
+     *         update; a reader on another thread, or across updates, takes a snapshotPortToPredicate() instead
+     */
+    public Map<Port, Set<Number>> getPortToPredicate() {
+        return Collections.unmodifiableMap(portToPredicateViews);
+    }
+
+    public HashMap<Port, HashSet<Number>> snapshotPortToPredicate() {
+        HashMap<Port, HashSet<Number>> ret = new HashMap<>();
+        for (Map.Entry<Port, HashSet<Number>> entry : portToPredicates.entrySet()) ret.put(entry.getKey(), new HashSet<>(entry.getValue()));
         return ret;
     }
 
@@ -261,6 +846,7 @@ public class InverseModel {
         System.out.println("    Converting to Conflict-free Update Block " + (s1to2 / nsToUsPU) + " us per-update");
         System.out.println("    Stage 2 (Model Update) " + (s2 / nsToUsPU) + " us per-update");
         System.out.println("    Ports " + (sports / nsToUsPU) + " us per-update");
+        System.out.println("    BDD table " + bddEngine.getTableStats());
         return s1 + s1to2 + s2;
     }
 }
@@ -0,0 +1,137 @@
+package org.snlab.flash.ModelManager;
+
+import jdd.bdd.BDD;
+
+/**
+ * The single-threaded JDD package, whose int nodes already use 0 and 1 as the terminals.
+ * It grows its node table and collects garbage by itself, inside operations; sizing it to the dataset avoids both.
+ * It does not count its live nodes; the size of its table, its grows and collections are read from its statistics.
+ */
+public final class JDDBackend implements BDDBackend {
+    private final Table bdd;
+    private final int[] vars;
+
+    public JDDBackend(int varNum) {
+        this(1000, 10000, varNum);
+    }
+
+    public JDDBackend(int nodes, int cache, int varNum) {
+        this.bdd = new Table(nodes, cache);
+        this.vars = new int[varNum];
+        for (int i = 0; i < varNum; i++) vars[i] = bdd.createVar();
+    }
+
+    @Override
+    public long var(int i) {
+        return bdd.ref(vars[i]);
+    }
+
+    @Override
+    public long nvar(int i) {
+        return bdd.ref(bdd.not(vars[i]));
+    }
+
+    @Override
+    public long and(long a, long b) {
+        return bdd.and((int) a, (int) b);
+    }
+
+    @Override
+    public long or(long a, long b) {
+        return bdd.or((int) a, (int) b);
+    }
+
+    @Override
+    public long not(long a) {
+        return bdd.not((int) a);
+    }
+
+    @Override
+    public long diff(long a, long b) {
+        int tmp = bdd.ref(bdd.not((int) b));
+        int ret = bdd.and((int) a, tmp);
+        bdd.deref(tmp);
+        return ret;
+    }
+
+    @Override
+    public long ref(long a) {
+        return bdd.ref((int) a);
+    }
+
+    @Override
+    public void deRef(long a) {
+        bdd.deref((int) a);
+    }
+
+    @Override
+    public boolean exposesNodes() {
+        return true;
+    }
+
+    @Override
+    public int getVar(long a) {
+        return bdd.getVar((int) a);
+    }
+
+    @Override
+    public long getLow(long a) {
+        return bdd.getLow((int) a);
+    }
+
+    @Override
+    public long getHigh(long a) {
+        return bdd.getHigh((int) a);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    @Override
+    public int gc() {
+        bdd.gc();
+        return -1;
+    }
+
+    @Override
+    public long getCapacity() {
+        return bdd.getTableSize();
+    }
+
+    @Override
+    public int getGrowCount() {
+        return bdd.getGrowCount();
+    }
+
+    @Override
+    public int getGcCount() {
+        return bdd.getGcCount();
+    }
+
+    public BDD getBdd() {
+        return bdd;
+    }
+
+    /**
+     * JDD keeps the statistics of its node table in protected fields.
+     */
+    private static final class Table extends BDD {
+        Table(int nodes, int cache) {
+            super(nodes, cache);
+        }
+
+        int getTableSize() {
+            return table_size;
+        }
+
+        int getGrowCount() {
+            return stat_nt_grow;
+        }
+
+        int getGcCount() {
+            return stat_gc_count;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.snlab.flash.ModelManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.snlab.flash.ModelManager.Ports.Ports;
+import org.snlab.network.Device;
+import org.snlab.network.FieldMatch;
+import org.snlab.network.Network;
+import org.snlab.network.Port;
+import org.snlab.network.Rule;
+
+/**
+ * A binary snapshot of an inverse model, so a verifier resumes in seconds instead of replaying every rule.
+ *
+ * The file (big-endian, at most 2GB since it is mapped as a whole) holds
+ *   - a header: magic, version, the number of BDD variables and of destination bits;
+ *   - the node table: every node reachable from a predicate as (var, low, high), where a child is either a terminal (0, 1)
+ *     or an earlier node (i + 2 for the i-th node), so nodes are rebuilt bottom-up by the BDD package in use;
+ *   - the rules with the index of their match (the IndexedRules of a device are rebuilt from its rules);
+ *   - the ECs, each as its ports (by device and port names) and the index of its predicate.
+ * Devices and ports are resolved by name in the network given to load, i.e., the topology is not part of the snapshot.
+ */
+public final class ModelCheckpoint {
+    private static final int MAGIC = 0x464C5348, VERSION = 1; // "FLSH"
+
+    private ModelCheckpoint() {
+    }
+
+    /**
+     * The snapshot is written to a temporary file next to the file, which replaces the file once complete and forced to
+     * the disk, so a failed save (or a crash) leaves an earlier checkpoint intact.
+     * @throws IllegalArgumentException if the BDD package does not expose its nodes (e.g., NANO), which are saved
+     */
+    public static void save(InverseModel model, Path file) throws IOException {
+        BDDBackend backend = model.bddEngine.getBackend();
+        if (!backend.exposesNodes())
+            throw new IllegalArgumentException("Cannot save a checkpoint of " + backend.getClass().getSimpleName() + ", which does not expose its nodes");
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = new Writer(tmp)) {
+            save(model, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void save(InverseModel model, Writer out) throws IOException {
+        BDDEngine bddEngine = model.bddEngine;
+        HashMap<Long, Integer> nodeToIndex = new HashMap<>();
+        ArrayList<int[]> nodes = new ArrayList<>();
+        ArrayList<Long> translated = new ArrayList<>(); // the BDDs of interval sets, released at the end
+
+        HashMap<Rule, Integer> ruleToIndex = new HashMap<>();
+        RuleTable rules = model.getRules();
+        for (int id = 0; id < rules.end(); id++)
+            if (rules.isHeld(id)) ruleToIndex.put(rules.getRule(id), export(bddEngine, rules.getMatch(id), nodeToIndex, nodes, translated));
+        HashMap<Ports, Integer> portsToIndex = new HashMap<>();
+        for (Map.Entry<Ports, Number> entry : model.portsToPredicate.entrySet())
+            portsToIndex.put(entry.getKey(), export(bddEngine, entry.getValue().longValue(), nodeToIndex, nodes, translated));
+        for (long t : translated) bddEngine.deRef(t);
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(bddEngine.getSchema().getVarNum());
+        out.putInt(bddEngine.getSize());
+
+        out.putInt(nodes.size());
+        for (int[] node : nodes) {
+            out.putInt(node[0]);
+            out.putInt(node[1]);
+            out.putInt(node[2]);
+        }
+
+        out.putInt(ruleToIndex.size());
+        for (Map.Entry<Rule, Integer> entry : ruleToIndex.entrySet()) {
+            Rule rule = entry.getKey();
+            out.putString(rule.getDevice().getName());
+            out.putString(rule.getOutPort().getName());
+            out.putLong(rule.getMatchHi());
+            out.putLong(rule.getMatch());
+            out.putInt(rule.getWidth());
+            out.putInt(rule.getPrefix());
+            out.putInt(rule.getPriority());
+            out.putInt(rule.getSrc());
+            out.putInt(rule.getSrcSuffix());
+            out.putInt(rule.getFields().size());
+            for (FieldMatch m : rule.getFields()) {
+                out.putString(m.getField());
+                out.putLong(m.getValueHi());
+                out.putLong(m.getLo());
+                out.putLong(m.getHi());
+                out.putInt(m.getPrefix());
+            }
+            out.putInt(entry.getValue());
+        }
+
+        out.putInt(portsToIndex.size());
+        for (Map.Entry<Ports, Integer> entry : portsToIndex.entrySet()) {
+            out.putInt(entry.getKey().getAll().size());
+            for (Port p : entry.getKey().getAll()) {
+                out.putString(p.getDevice().getName());
+                out.putString(p.getName());
+            }
+            out.putInt(entry.getValue());
+        }
+        out.finish();
+    }
+
+    /**
+     * @return the index of the node in the table, after all nodes below it
+     */
+    private static int export(BDDEngine bddEngine, long a, HashMap<Long, Integer> nodeToIndex, ArrayList<int[]> nodes,
+                              ArrayList<Long> translated) {
+        if (a < 0) { // an interval set
+            a = bddEngine.asBdd(a);
+            translated.add(a);
+        }
+        if (a == BDDEngine.BDDFalse || a == BDDEngine.BDDTrue) return (int) a;
+        Integer ret = nodeToIndex.get(a);
+        if (ret != null) return ret;
+
+        int low = export(bddEngine, bddEngine.getLow(a), nodeToIndex, nodes, translated);
+        int high = export(bddEngine, bddEngine.getHigh(a), nodeToIndex, nodes, translated);
+        nodes.add(new int[]{bddEngine.getVar(a), low, high});
+        nodeToIndex.put(a, nodes.size() + 1);
+        return nodes.size() + 1;
+    }
+
+    /**
+     * @param network  the topology, whose devices and ports are named as in the snapshot
+     * @param bddEngine an engine on BDDs with the schema of the snapshot
+     * @param base     the Ports implementation of the model
+     * @return the restored model, to which the updates since the snapshot can be applied
+     */
+    public static InverseModel load(Network network, BDDEngine bddEngine, Ports base, Path file) throws IOException {
+        if (bddEngine.isOnIntervals()) throw new IllegalArgumentException("A checkpoint is restored to BDDs, not interval sets");
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (in.getInt() != MAGIC) throw new IOException(file + " is not a model checkpoint");
+        int version = in.getInt();
+        if (version != VERSION) throw new IOException("Unsupported checkpoint version " + version);
+        int varNum = in.getInt(), size = in.getInt();
+        if (varNum != bddEngine.getSchema().getVarNum() || size != bddEngine.getSize())
+            throw new IOException("The checkpoint has " + varNum + " variables (" + size + " destination bits), but the engine has "
+                    + bddEngine.getSchema().getVarNum() + " (" + bddEngine.getSize() + ")");
+
+        long[] nodes = new long[in.getInt() + 2];
+        nodes[0] = BDDEngine.BDDFalse;
+        nodes[1] = BDDEngine.BDDTrue;
+        for (int i = 2; i < nodes.length; i++) {
+            int var = in.getInt(), low = in.getInt(), high = in.getInt();
+            nodes[i] = bddEngine.mk(var, nodes[low], nodes[high]);
+        }
+
+        InverseModel ret = new InverseModel(network, bddEngine, base);
+        int ruleCnt = in.getInt();
+        for (int i = 0; i < ruleCnt; i++) {
+            Device device = device(network, getString(in));
+            Port port = device.getPort(getString(in));
+            long matchHi = in.getLong(), match = in.getLong();
+            int width = in.getInt(), prefix = in.getInt(), priority = in.getInt(), src = in.getInt(), srcSuffix = in.getInt();
+            Rule rule;
+            if (width > 64) {
+                rule = new Rule(device, src, srcSuffix, matchHi, match, prefix, priority, port);
+            } else if (srcSuffix > 0) {
+                rule = new Rule(device, src, srcSuffix, match, prefix, port);
+                rule.setPriority(priority);
+            } else {
+                rule = new Rule(device, match, prefix, priority, port);
+            }
+            int fieldCnt = in.getInt();
+            for (int j = 0; j < fieldCnt; j++) {
+                String field = getString(in);
+                long valueHi = in.getLong(), lo = in.getLong(), hi = in.getLong();
+                int fieldPrefix = in.getInt();
+                rule.addField(fieldPrefix == -1 ? FieldMatch.range(field, lo, hi) : new FieldMatch(field, valueHi, lo, fieldPrefix));
+            }
+            ret.restoreRule(rule, bddEngine.ref(nodes[in.getInt()]));
+        }
+
+        HashMap<Ports, Number> portsToPredicate = new HashMap<>();
+        int ecCnt = in.getInt();
+        for (int i = 0; i < ecCnt; i++) {
+            ArrayList<Port> ports = new ArrayList<>();
+            int portCnt = in.getInt();
+            for (int j = 0; j < portCnt; j++) {
+                Device device = device(network, getString(in));
+                ports.add(device.getPort(getString(in)));
+            }
+            portsToPredicate.put(base.create(ports, 0, ports.size()), bddEngine.ref(nodes[in.getInt()]));
+        }
+        for (Number predicate : ret.portsToPredicate.values()) bddEngine.deRef(predicate.longValue());
+        ret.portsToPredicate = portsToPredicate;
+        ret.reindex();
+
+        for (long node : nodes) bddEngine.deRef(node);
+        return ret;
+    }
+
+    private static Device device(Network network, String name) throws IOException {
+        Device ret = network.getDevices().get(name);
+        if (ret == null) throw new IOException("Device " + name + " of the checkpoint is not in the network");
+        return ret;
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Buffers the snapshot in a direct buffer, and writes it to the channel whenever the buffer is full.
+     */
+    private static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        Writer(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buffer.remaining() >= n) return;
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buffer.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buffer.putLong(v);
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(bytes.length);
+            if (bytes.length <= buffer.capacity()) {
+                buffer.put(bytes);
+                return;
+            }
+            ByteBuffer t = ByteBuffer.wrap(bytes);
+            while (t.hasRemaining()) channel.write(t);
+        }
+
+        /**
+         * Writes the rest of the buffer, and forces the file to the disk before it replaces the checkpoint.
+         */
+        void finish() throws IOException {
+            ensure(buffer.capacity());
+            channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
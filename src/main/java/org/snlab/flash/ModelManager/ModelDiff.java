@@ -0,0 +1,152 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.snlab.flash.ModelManager.Ports.Ports;
+import org.snlab.network.Device;
+import org.snlab.network.Port;
+
+/**
+ * The difference of the forwarding between two versions of a model on the same BDDEngine, e.g., a fork and its parent
+ * (see InverseModel.fork), for the review of a change: the regions of the header space whose ports differ.
+ *
+ * BDDs are canonical within an engine, so an EC with the same ports and the same predicate handle in both versions is
+ * skipped without any BDD operation; only the remaining ECs, whose union is the changed space, are intersected.
+ * The ports of two ECs are compared by Ports.diff, which skips the subtrees shared by persistent ports.
+ */
+public final class ModelDiff {
+    private final BDDEngine bddEngine;
+    private final ArrayList<Region> regions = new ArrayList<>();
+
+    /**
+     * A region of headers forwarded by before to one vector of ports, and by after to another.
+     */
+    public static final class Region {
+        private final long predicate;
+        private final Ports before, after;
+        private final List<Port> changes;
+
+        Region(long predicate, Ports before, Ports after) {
+            this.predicate = predicate;
+            this.before = before;
+            this.after = after;
+            this.changes = before.diff(after);
+        }
+
+        public long getPredicate() {
+            return predicate;
+        }
+
+        public Ports getBefore() {
+            return before;
+        }
+
+        public Ports getAfter() {
+            return after;
+        }
+
+        /**
+         * @return the ports of after on the devices whose action changed in this region
+         */
+        public List<Port> getChanges() {
+            return changes;
+        }
+    }
+
+    private ModelDiff(BDDEngine bddEngine) {
+        this.bddEngine = bddEngine;
+    }
+
+    /**
+     * @return the regions whose ports differ, with referenced predicates (see releaseBDDs)
+     */
+    public static ModelDiff between(InverseModel before, InverseModel after) {
+        if (before.bddEngine != after.bddEngine)
+            throw new IllegalArgumentException("Only versions of a model on the same BDDEngine can be compared");
+        BDDEngine bddEngine = before.bddEngine;
+        ModelDiff ret = new ModelDiff(bddEngine);
+        if (before.portsToPredicate == after.portsToPredicate) return ret; // a fork which has not been updated
+
+        ArrayList<Map.Entry<Ports, Number>> removed = changed(before.portsToPredicate, after.portsToPredicate);
+        ArrayList<Map.Entry<Ports, Number>> added = changed(after.portsToPredicate, before.portsToPredicate);
+        HashSet<Ports> addedPorts = new HashSet<>();
+        for (Map.Entry<Ports, Number> entry : added) addedPorts.add(entry.getKey());
+
+        IndexedECs indexedECs = after.getIndexedECs();
+        for (Map.Entry<Ports, Number> entry : removed) {
+            long rest = bddEngine.ref(entry.getValue().longValue());
+            Collection<Ports> candidates = addedPorts;
+            if (indexedECs != null) {
+                HashSet<Ports> t = indexedECs.candidates(rest);
+                t.retainAll(addedPorts);
+                candidates = t;
+            }
+            for (Ports ports : candidates) {
+                if (rest == BDDEngine.BDDFalse) break;
+                long intersection = bddEngine.and(rest, after.portsToPredicate.get(ports).longValue());
+                if (intersection == BDDEngine.BDDFalse) continue;
+
+                long t = bddEngine.diff(rest, intersection);
+                bddEngine.deRef(rest);
+                rest = t;
+                if (ports.equals(entry.getKey())) { // the EC only grew or shrank, its overlap is forwarded as before
+                    bddEngine.deRef(intersection);
+                } else {
+                    ret.regions.add(new Region(intersection, entry.getKey(), ports));
+                }
+            }
+            bddEngine.deRef(rest);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the ECs of a which are not in b with the same predicate
+     */
+    private static ArrayList<Map.Entry<Ports, Number>> changed(Map<Ports, Number> a, Map<Ports, Number> b) {
+        ArrayList<Map.Entry<Ports, Number>> ret = new ArrayList<>();
+        for (Map.Entry<Ports, Number> entry : a.entrySet()) {
+            Number t = b.get(entry.getKey());
+            if (t == null || t.longValue() != entry.getValue().longValue()) ret.add(entry);
+        }
+        return ret;
+    }
+
+    public List<Region> getRegions() {
+        return regions;
+    }
+
+    public boolean isEmpty() {
+        return regions.isEmpty();
+    }
+
+    /**
+     * @return the devices whose action changed in any region
+     */
+    public HashSet<Device> getDevices() {
+        HashSet<Device> ret = new HashSet<>();
+        for (Region region : regions) for (Port p : region.changes) ret.add(p.getDevice());
+        return ret;
+    }
+
+    /**
+     * @return the referenced union of the regions, i.e., all headers whose forwarding changed
+     */
+    public long getChangedSpace() {
+        ArrayList<Long> predicates = new ArrayList<>();
+        for (Region region : regions) predicates.add(bddEngine.ref(region.predicate)); // consumed by orAll
+        return bddEngine.orAll(predicates);
+    }
+
+    /**
+     * Releases the predicates of the regions, the diff is not usable afterwards.
+     */
+    public void releaseBDDs() {
+        for (Region region : regions) bddEngine.deRef(region.predicate);
+        regions.clear();
+    }
+}
@@ -0,0 +1,95 @@
+package org.snlab.flash.ModelManager;
+
+import org.snlab.jni.NanoBDD;
+
+/**
+ * The native (C++) NanoBDD package, which can be shared by multiple threads.
+ * Its terminals are node pointers, which are translated to 0 and 1 (a pointer never takes these two values).
+ */
+public final class NanoBDDBackend implements BDDBackend {
+    private final NanoBDD bdd;
+    private final long nanoFalse, nanoTrue;
+    private final int tableSize;
+
+    public NanoBDDBackend(int varNum) {
+        // In C++ NanoBDD, the table size is the number of ConcurrentLinkedList.
+        // Based on singe-thread benchmark on **I2** dataset, setting this value too high
+        // will cause more memory footprint, while setting it too low the computation takes
+        // longer (longer linkedlist). So 10_000_000 is a good value (100_000_000 will double
+        // memory usage, no perf improvement, 1_000_000 will lose 40% perf).
+        this(1_000_000, 100_000, varNum);
+    }
+
+    /**
+     * @param tableSize the number of lists, about one per expected node keeps the lists short
+     * @param cacheSize the number of entries of the operation cache
+     */
+    public NanoBDDBackend(int tableSize, int cacheSize, int varNum) {
+        this.bdd = new NanoBDD(tableSize, cacheSize, varNum);
+        this.tableSize = tableSize;
+        this.nanoFalse = bdd.getFalse();
+        this.nanoTrue = bdd.getTrue();
+    }
+
+    private long in(long a) {
+        return a == BDDEngine.BDDFalse ? nanoFalse : (a == BDDEngine.BDDTrue ? nanoTrue : a);
+    }
+
+    private long out(long a) {
+        return a == nanoFalse ? BDDEngine.BDDFalse : (a == nanoTrue ? BDDEngine.BDDTrue : a);
+    }
+
+    @Override
+    public long var(int i) {
+        return out(bdd.var(i));
+    }
+
+    @Override
+    public long nvar(int i) {
+        return out(bdd.nvar(i));
+    }
+
+    @Override
+    public long and(long a, long b) {
+        return out(bdd.and(in(a), in(b)));
+    }
+
+    @Override
+    public long or(long a, long b) {
+        return out(bdd.or(in(a), in(b)));
+    }
+
+    @Override
+    public long not(long a) {
+        return out(bdd.not(in(a)));
+    }
+
+    @Override
+    public long diff(long a, long b) {
+        return out(bdd.diff(in(a), in(b)));
+    }
+
+    @Override
+    public long ref(long a) {
+        bdd.ref(in(a));
+        return a;
+    }
+
+    @Override
+    public void deRef(long a) {
+        bdd.deRef(in(a));
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    /**
+     * The lists of NanoBDD are unbounded, so this is the number of nodes it holds before the lists get long.
+     */
+    @Override
+    public long getCapacity() {
+        return tableSize;
+    }
+}
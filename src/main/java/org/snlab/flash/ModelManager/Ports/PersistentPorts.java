@@ -88,6 +88,24 @@ public class PersistentPorts extends Ports {
         return ret;
     }
 
+    /**
+     * Vectors of the same devices have trees of the same shape, where a subtree shared by both is skipped.
+     */
+    @Override
+    public List<Port> diff(Ports other) {
+        if (!(other instanceof PersistentPorts)) return super.diff(other);
+        ArrayList<Port> ret = new ArrayList<>();
+        this.diff((PersistentPorts) other, ret);
+        return ret;
+    }
+
+    private void diff(PersistentPorts other, ArrayList<Port> ret) {
+        if (this == other || other == null) return;
+        if (this.p != other.p) ret.add(other.p);
+        if (this.l != null) this.l.diff(other.l, ret);
+        if (this.r != null) this.r.diff(other.r, ret);
+    }
+
     @Override
     public int hashCode() {
         return this.hash;
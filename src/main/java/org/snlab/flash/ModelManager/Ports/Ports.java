@@ -3,8 +3,11 @@ package org.snlab.flash.ModelManager.Ports;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
 
+import org.snlab.network.Device;
 import org.snlab.network.Port;
 
 public abstract class Ports {
@@ -12,4 +15,16 @@ public abstract class Ports {
     public abstract Ports change(Port change);
     public abstract Ports createWithChanges(TreeMap<Integer, Port> changes);
     public abstract Collection<Port> getAll();
+
+    /**
+     * @param other the ports of the same devices, e.g., of another EC or another version of the model
+     * @return the ports of other on the devices where it differs from this
+     */
+    public List<Port> diff(Ports other) {
+        HashMap<Device, Port> deviceToPort = new HashMap<>();
+        for (Port p : getAll()) deviceToPort.put(p.getDevice(), p);
+        ArrayList<Port> ret = new ArrayList<>();
+        for (Port p : other.getAll()) if (deviceToPort.get(p.getDevice()) != p) ret.add(p);
+        return ret;
+    }
 }
@@ -0,0 +1,211 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.Arrays;
+
+/**
+ * Encodes prefix-matches of one header field, and memoizes the referenced BDD of every encoded prefix.
+ *
+ * Unlike a per-bit trie (which pins a BDD for every intermediate bit, i.e., O(prefix^2) nodes per path),
+ * only the requested prefixes are kept, indexed by (value, length) in a primitive open-addressing table.
+ * This keeps 128-bit (IPv6) fields affordable, and a lookup neither walks the bits nor allocates.
+ *
+ * The value of a field with width w is right-aligned in (hi, lo), i.e., its i-th bit (from the high bit)
+ * is bit (w - 1 - i) of the 128-bit number hi:lo, and it matches the i-th literal.
+ *
+ * The table can be bounded (e.g., for days of update churn), then a clock sweep evicts entries which were not hit
+ * since the last sweep, and releases their BDDs; a BDD still held by a rule is kept alive by the rule's own reference.
+ */
+final class PrefixCode {
+    private final BDDBackend bdd;
+    private final long[] vars, nVars; // literals from high bit to low bit
+    private final int width;
+
+    private long[] his, los, results;
+    private int[] lens; // -1 marks an empty slot
+    private boolean[] used; // the clock bit, set on every hit
+    private int cnt, mask;
+    private int limit = 0, hand = 0; // limit 0 means unbounded
+    private long hits = 0, misses = 0;
+
+    PrefixCode(BDDBackend bdd, long[] vars, long[] nVars) {
+        this.bdd = bdd;
+        this.vars = vars;
+        this.nVars = nVars;
+        this.width = vars.length;
+        allocate(64);
+    }
+
+    private void allocate(int capacity) {
+        this.his = new long[capacity];
+        this.los = new long[capacity];
+        this.results = new long[capacity];
+        this.lens = new int[capacity];
+        this.used = new boolean[capacity];
+        Arrays.fill(this.lens, -1);
+        this.mask = capacity - 1;
+        this.cnt = 0;
+        this.hand = 0;
+    }
+
+    private static int hash(long hi, long lo, int len) {
+        long h = (hi * 0x9E3779B97F4A7C15L + lo) * 0xBF58476D1CE4E5B9L + len;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private boolean bit(long hi, long lo, int i) {
+        int k = width - 1 - i;
+        return ((k >= 64 ? hi >>> (k - 64) : lo >>> k) & 1) == 1;
+    }
+
+    /**
+     * @return the referenced BDD of the first len bits of the value hi:lo
+     */
+    long encode(long hi, long lo, int len) {
+        if (len < 0 || len > width) throw new IllegalArgumentException("Prefix of " + len + " bits on " + width + " bits");
+        // clear the bits beyond the prefix, so every prefix has a unique key
+        int k = width - len; // the number of wildcard (low) bits
+        if (k >= 128) {
+            hi = lo = 0;
+        } else if (k >= 64) {
+            hi &= -1L << (k - 64);
+            lo = 0;
+        } else if (k > 0) {
+            lo &= -1L << k;
+        }
+
+        int i = hash(hi, lo, len) & mask;
+        while (lens[i] != -1) {
+            if (lens[i] == len && los[i] == lo && his[i] == hi) {
+                hits++;
+                used[i] = true;
+                return bdd.ref(results[i]);
+            }
+            i = (i + 1) & mask;
+        }
+
+        misses++;
+        long ret = build(hi, lo, len);
+        if (limit > 0 && cnt >= limit) {
+            evict(cnt - limit + 1);
+            // the eviction shifts entries, so the free slot is probed again
+            i = hash(hi, lo, len) & mask;
+            while (lens[i] != -1) i = (i + 1) & mask;
+        }
+        his[i] = hi;
+        los[i] = lo;
+        lens[i] = len;
+        results[i] = ret;
+        used[i] = false;
+        if (++cnt * 2 > lens.length) rehash();
+        return bdd.ref(ret);
+    }
+
+    /**
+     * Splits [lo, hi] into maximal aligned blocks, each of which is a cached prefix-match (the field has at most 62 bits).
+     * @return the referenced union of the blocks
+     */
+    long encodeRange(long lo, long hi) {
+        long ret = BDDEngine.BDDFalse;
+        while (lo <= hi) {
+            int k = lo == 0 ? width : Math.min(Long.numberOfTrailingZeros(lo), width); // lo is aligned to 2^k
+            while (k > 0 && lo + (1L << k) - 1 > hi) k--;
+            long block = encode(0, lo, width - k);
+            long t = bdd.ref(bdd.or(ret, block));
+            bdd.deRef(ret);
+            bdd.deRef(block);
+            ret = t;
+            lo += 1L << k;
+        }
+        return ret;
+    }
+
+    /**
+     * Builds the cube bottom-up, so every step only puts one literal on top of the previous result.
+     */
+    private long build(long hi, long lo, int len) {
+        long ret = BDDEngine.BDDTrue;
+        for (int i = len - 1; i >= 0; i--) {
+            long t = bdd.ref(bdd.and(bit(hi, lo, i) ? vars[i] : nVars[i], ret));
+            bdd.deRef(ret);
+            ret = t;
+        }
+        return ret;
+    }
+
+    /**
+     * Runs the clock hand until n entries are evicted, an entry hit since the last pass gets a second chance.
+     */
+    private void evict(int n) {
+        while (n > 0 && cnt > 0) {
+            if (lens[hand] != -1) {
+                if (used[hand]) {
+                    used[hand] = false;
+                } else {
+                    bdd.deRef(results[hand]);
+                    remove(hand);
+                    n--;
+                    continue; // an entry may have been shifted into the hand
+                }
+            }
+            hand = (hand + 1) & mask;
+        }
+    }
+
+    /**
+     * Backward-shift deletion, so that no tombstone is needed by the linear probing.
+     */
+    private void remove(int i) {
+        lens[i] = -1;
+        cnt--;
+        for (int j = (i + 1) & mask; lens[j] != -1; j = (j + 1) & mask) {
+            int home = hash(his[j], los[j], lens[j]) & mask;
+            if (((j - home) & mask) < ((j - i) & mask)) continue; // j cannot be moved before its home slot
+            his[i] = his[j];
+            los[i] = los[j];
+            lens[i] = lens[j];
+            results[i] = results[j];
+            used[i] = used[j];
+            lens[j] = -1;
+            i = j;
+        }
+    }
+
+    private void rehash() {
+        long[] oldHis = his, oldLos = los, oldResults = results;
+        int[] oldLens = lens;
+        boolean[] oldUsed = used;
+        allocate(oldLens.length * 2);
+        for (int j = 0; j < oldLens.length; j++) {
+            if (oldLens[j] == -1) continue;
+            int i = hash(oldHis[j], oldLos[j], oldLens[j]) & mask;
+            while (lens[i] != -1) i = (i + 1) & mask;
+            his[i] = oldHis[j];
+            los[i] = oldLos[j];
+            lens[i] = oldLens[j];
+            results[i] = oldResults[j];
+            used[i] = oldUsed[j];
+            cnt++;
+        }
+    }
+
+    /**
+     * @param limit the maximum number of cached prefixes, 0 for unbounded; entries beyond it are evicted right away
+     */
+    void setLimit(int limit) {
+        if (limit < 0) throw new IllegalArgumentException("Negative encoding cache limit " + limit);
+        this.limit = limit;
+        if (limit > 0 && cnt > limit) evict(cnt - limit);
+    }
+
+    int size() {
+        return cnt;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+}
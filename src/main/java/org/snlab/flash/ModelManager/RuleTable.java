@@ -0,0 +1,140 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.snlab.network.Port;
+import org.snlab.network.Rule;
+
+/**
+ * Interns the rules of a model with dense int ids, and keeps what the identification of changes reads of a rule
+ * (its BDD match, priority, out-port and device) in primitive arrays indexed by the id.
+ * A rule is only hashed when it is added or looked up by its value (i.e., when a batch comes in), the tries
+ * (see IndexedRules) and the loops over overlapping rules work on ids.
+ * Ids of removed rules are reused, so the arrays are as long as the most rules held at once.
+ */
+public final class RuleTable {
+    private final HashMap<Rule, Integer> ruleToId = new HashMap<>();
+    private final HashMap<Port, Integer> portToId = new HashMap<>();
+    private final ArrayList<Port> ports = new ArrayList<>();
+
+    private Rule[] rules = new Rule[16];
+    private long[] matches = new long[16];
+    private int[] priorities = new int[16], portIds = new int[16], deviceIds = new int[16];
+    private int[] free = new int[16];
+    private int freeCnt = 0, end = 0; // ids in [0, end) are either held or free
+
+    /**
+     * @return the id of the rule, a new one (with an empty match) if the rule is not in the table
+     */
+    public int add(Rule rule) {
+        Integer ret = ruleToId.get(rule);
+        if (ret != null) return ret;
+
+        int id = freeCnt > 0 ? free[--freeCnt] : end++;
+        if (id == rules.length) grow();
+        rules[id] = rule;
+        matches[id] = BDDEngine.BDDFalse;
+        priorities[id] = rule.getPriority();
+        portIds[id] = portToId.computeIfAbsent(rule.getOutPort(), p -> {
+            ports.add(p);
+            return ports.size() - 1;
+        });
+        deviceIds[id] = rule.getDevice().uid;
+        ruleToId.put(rule, id);
+        return id;
+    }
+
+    /**
+     * @return a table with the same rules by the same ids, whose matches are not referenced again here
+     */
+    RuleTable copy() {
+        RuleTable ret = new RuleTable();
+        ret.ruleToId.putAll(ruleToId);
+        ret.portToId.putAll(portToId);
+        ret.ports.addAll(ports);
+        ret.rules = rules.clone();
+        ret.matches = matches.clone();
+        ret.priorities = priorities.clone();
+        ret.portIds = portIds.clone();
+        ret.deviceIds = deviceIds.clone();
+        ret.free = free.clone();
+        ret.freeCnt = freeCnt;
+        ret.end = end;
+        return ret;
+    }
+
+    private void grow() {
+        int n = rules.length * 2;
+        rules = Arrays.copyOf(rules, n);
+        matches = Arrays.copyOf(matches, n);
+        priorities = Arrays.copyOf(priorities, n);
+        portIds = Arrays.copyOf(portIds, n);
+        deviceIds = Arrays.copyOf(deviceIds, n);
+    }
+
+    /**
+     * @return the id of the rule, -1 if it is not in the table
+     */
+    public int getId(Rule rule) {
+        Integer ret = ruleToId.get(rule);
+        return ret == null ? -1 : ret;
+    }
+
+    /**
+     * Frees the id of a rule, its match is not released here.
+     */
+    public void remove(int id) {
+        ruleToId.remove(rules[id]);
+        rules[id] = null;
+        if (freeCnt == free.length) free = Arrays.copyOf(free, free.length * 2);
+        free[freeCnt++] = id;
+    }
+
+    public Rule getRule(int id) {
+        return rules[id];
+    }
+
+    public long getMatch(int id) {
+        return matches[id];
+    }
+
+    public void setMatch(int id, long match) {
+        matches[id] = match;
+    }
+
+    public int getPriority(int id) {
+        return priorities[id];
+    }
+
+    /**
+     * @return the id of the out-port of a rule, ports have the same id for all rules
+     */
+    public int getPortId(int id) {
+        return portIds[id];
+    }
+
+    public Port getOutPort(int id) {
+        return ports.get(portIds[id]);
+    }
+
+    public int getDeviceId(int id) {
+        return deviceIds[id];
+    }
+
+    /**
+     * @return an upper bound of the ids, i.e., ids held are in [0, end()), see isHeld
+     */
+    public int end() {
+        return end;
+    }
+
+    public boolean isHeld(int id) {
+        return rules[id] != null;
+    }
+
+    public int size() {
+        return ruleToId.size();
+    }
+}
@@ -0,0 +1,199 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.snlab.flash.ModelManager.Ports.Ports;
+import org.snlab.network.FieldMatch;
+import org.snlab.network.Network;
+import org.snlab.network.Rule;
+
+/**
+ * Splits the destination space into 2^bits subspaces by the leading destination bits, each verified by an InverseModel
+ * with its own BDDEngine, so the whole space of a large network (e.g., LNet) is spread over the cores of a box instead of
+ * verifying a single subspace of it (see Network.filterIntoSubsapce).
+ *
+ * A rule goes to the shard of its prefix, a rule shorter than the prefix of a shard is split into one piece per shard,
+ * which keeps its priority (thus the order of the rules in every subspace, and the pieces of LPM rules are LPM rules of
+ * the shard, see IndexedRules.isLpm). Each shard only holds rules in its subspace, the rest of the space stays in its
+ * default EC; the ECs of a shard are its ECs within the subspace.
+ * Batches and queries are fanned out to the shards on a pool of min(#shards, #cores) daemon threads, where a shard is only
+ * run by one thread at a time; the threads are stopped by close().
+ */
+public class ShardedInverseModel implements AutoCloseable {
+    private final int bits, size;
+    private final InverseModel[] shards;
+    private final BDDEngine[] engines;
+    private final long[] spaces; // the referenced subspace of every shard in its engine
+    private final ExecutorService pool;
+
+    /**
+     * @param bits the number of leading destination bits which select the shard, 2^bits shards
+     */
+    public ShardedInverseModel(Network network, int bits, int size, BDDBackend.Type type, Ports base) {
+        this(network, bits, HeaderSchema.of(size), type, base);
+    }
+
+    public ShardedInverseModel(Network network, int bits, HeaderSchema schema, BDDBackend.Type type, Ports base) {
+        this.size = schema.getWidth(HeaderSchema.DST);
+        if (bits < 0 || bits > Math.min(16, size)) throw new IllegalArgumentException("Cannot shard " + size + " destination bits by " + bits + " bits");
+        this.bits = bits;
+        this.shards = new InverseModel[1 << bits];
+        this.engines = new BDDEngine[shards.length];
+        this.spaces = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            engines[i] = new BDDEngine(schema, type);
+            spaces[i] = size > 64 ? engines[i].encodeField(HeaderSchema.DST, (long) i << (64 - bits), 0, bits)
+                    : engines[i].encodeField(HeaderSchema.DST, (long) i << (size - bits), bits);
+            shards[i] = new InverseModel(network, engines[i], base);
+            shards[i].setParallel(false); // shards are the unit of parallelism
+            shards[i].skipIndexedBits(bits);
+            shards[i].setIndexedECs(true);
+        }
+        this.pool = Executors.newFixedThreadPool(Math.min(shards.length, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread ret = new Thread(r, "shard");
+            ret.setDaemon(true); // a model which is not closed does not keep the JVM alive
+            return ret;
+        });
+    }
+
+    /**
+     * Runs both stages of a batch in every shard it touches.
+     * @return the number of transferred ECs, summed over the shards
+     */
+    public int update(List<Rule> insertions, List<Rule> deletions) {
+        ArrayList<List<Rule>> shardToInsertions = route(insertions), shardToDeletions = route(deletions);
+        ArrayList<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            if (shardToInsertions.get(i).isEmpty() && shardToDeletions.get(i).isEmpty()) continue;
+            InverseModel shard = shards[i];
+            List<Rule> ins = shardToInsertions.get(i), del = shardToDeletions.get(i);
+            futures.add(pool.submit(() -> shard.update(shard.miniBatch(ins, del)).size()));
+        }
+        int ret = 0;
+        for (Future<Integer> future : futures) ret += get(future);
+        return ret;
+    }
+
+    public int insertMiniBatch(List<Rule> insertions) {
+        return update(insertions, new ArrayList<>());
+    }
+
+    /**
+     * Answers a query on every shard, e.g., query(InverseModel::predSize).
+     * Predicates (BDD handles) of different shards belong to different engines, thus are not comparable.
+     * @return the answers in the order of the shards
+     */
+    public <T> List<T> query(Function<InverseModel, T> query) {
+        ArrayList<Future<T>> futures = new ArrayList<>();
+        for (InverseModel shard : shards) futures.add(pool.submit(() -> query.apply(shard)));
+        ArrayList<T> ret = new ArrayList<>();
+        for (Future<T> future : futures) ret.add(get(future));
+        return ret;
+    }
+
+    /**
+     * An EC is identified by its ports, so an EC spanning several subspaces (e.g., of a rule split into pieces) is counted
+     * once, and the default EC only if it has a header in some subspace.
+     * @return the number of ECs of the whole space
+     */
+    public int predSize() {
+        ArrayList<Future<List<Ports>>> futures = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            futures.add(pool.submit(() -> ecs(shard)));
+        }
+        HashSet<Ports> ret = new HashSet<>();
+        for (Future<List<Ports>> future : futures) ret.addAll(get(future));
+        return ret.size();
+    }
+
+    /**
+     * Only the default EC may reach out of the subspace, as every rule of the shard is in it.
+     * @return the ports of the ECs of a shard with a header in its subspace
+     */
+    private List<Ports> ecs(int shard) {
+        ArrayList<Ports> ret = new ArrayList<>();
+        Ports defaultPorts = shards[shard].getDefaultPorts();
+        for (Map.Entry<Ports, Number> entry : shards[shard].portsToPredicate.entrySet()) {
+            if (entry.getKey().equals(defaultPorts)) {
+                long t = engines[shard].and(entry.getValue().longValue(), spaces[shard]);
+                if (t != BDDEngine.BDDFalse) ret.add(entry.getKey());
+                engines[shard].deRef(t);
+            } else {
+                ret.add(entry.getKey());
+            }
+        }
+        return ret;
+    }
+
+    public InverseModel getShard(int i) {
+        return shards[i];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Stops the threads of the shards, the model is not usable afterwards.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private ArrayList<List<Rule>> route(List<Rule> rules) {
+        ArrayList<List<Rule>> ret = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) ret.add(new ArrayList<>());
+        for (Rule rule : rules) {
+            if (bits == 0) {
+                ret.get(0).add(rule);
+                continue;
+            }
+            int shard = (int) (size > 64 ? rule.getMatchHi() >>> (64 - bits) : rule.getMatch() >>> (size - bits));
+            if (rule.getPrefix() >= bits) {
+                ret.get(shard).add(rule);
+                continue;
+            }
+            for (int i = 0; i < 1 << (bits - rule.getPrefix()); i++) ret.get(shard | i).add(piece(rule, shard | i));
+        }
+        return ret;
+    }
+
+    /**
+     * @return the part of the rule in the subspace of a shard, which equals the piece of an earlier split
+     */
+    private Rule piece(Rule rule, int shard) {
+        Rule ret;
+        if (size > 64) {
+            long hi = rule.getMatchHi() | ((long) shard << (64 - bits));
+            ret = new Rule(rule.getDevice(), rule.getSrc(), rule.getSrcSuffix(), hi, rule.getMatch(), bits, rule.getPriority(), rule.getOutPort());
+        } else if (rule.getSrcSuffix() > 0) {
+            ret = new Rule(rule.getDevice(), rule.getSrc(), rule.getSrcSuffix(), rule.getMatch() | ((long) shard << (size - bits)), bits, rule.getOutPort());
+            ret.setPriority(rule.getPriority());
+        } else {
+            ret = new Rule(rule.getDevice(), rule.getMatch() | ((long) shard << (size - bits)), bits, rule.getPriority(), rule.getOutPort());
+        }
+        for (FieldMatch m : rule.getFields()) ret.addField(m);
+        return ret;
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
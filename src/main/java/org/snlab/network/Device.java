@@ -1,7 +1,6 @@
 package org.snlab.network;
 
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -27,9 +26,13 @@ public class Device {
         this.initialRules = new ArrayList<>();
     }
 
-    public Rule getRule(BigInteger match, int mask) {
+    public Rule getRule(long match, int mask) {
+        return getRule(0, match, mask);
+    }
+
+    public Rule getRule(long matchHi, long match, int mask) {
         for (Rule r : this.initialRules) {
-            if (r.getMatch().equals(match) && r.getPrefix() == mask) {
+            if (r.getMatch() == match && r.getMatchHi() == matchHi && r.getPrefix() == mask) {
                 return r;
             }
         }
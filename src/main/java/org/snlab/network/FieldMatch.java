@@ -0,0 +1,80 @@
+package org.snlab.network;
+
+import java.util.Objects;
+
+/**
+ * A match on one header field other than the destination, e.g., src prefix, protocol, L4 port range or VRF.
+ * The field is named as declared by the header schema of the verifier.
+ *
+ * Either a prefix-match (the first prefix bits of valueHi:value, valueHi is only used by fields wider than 64 bits),
+ * or a range-match [lo, hi] on a field of at most 62 bits, in which case prefix is -1.
+ */
+public class FieldMatch {
+    private final String field;
+    private final long valueHi, lo, hi;
+    private final int prefix;
+
+    public FieldMatch(String field, long value, int prefix) {
+        this(field, 0, value, prefix);
+    }
+
+    public FieldMatch(String field, long valueHi, long value, int prefix) {
+        this.field = field;
+        this.valueHi = valueHi;
+        this.lo = this.hi = value;
+        this.prefix = prefix;
+    }
+
+    public static FieldMatch range(String field, long lo, long hi) {
+        return new FieldMatch(field, lo, hi);
+    }
+
+    private FieldMatch(String field, long lo, long hi) {
+        this.field = field;
+        this.valueHi = 0;
+        this.lo = lo;
+        this.hi = hi;
+        this.prefix = -1;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public boolean isRange() {
+        return prefix == -1;
+    }
+
+    public long getValueHi() {
+        return valueHi;
+    }
+
+    public long getValue() {
+        return lo;
+    }
+
+    public int getPrefix() {
+        return prefix;
+    }
+
+    public long getLo() {
+        return lo;
+    }
+
+    public long getHi() {
+        return hi;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FieldMatch that = (FieldMatch) o;
+        return valueHi == that.valueHi && lo == that.lo && hi == that.hi && prefix == that.prefix && field.equals(that.field);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(field, valueHi, lo, hi, prefix);
+    }
+}
@@ -112,7 +112,7 @@ public class Network {
     public void filterIntoSubsapce(long subnet, long mask) {
         ArrayList<Rule> filtered = new ArrayList<>();
         for (Rule rule : initialRules) {
-            if ((rule.getMatch().longValue() & mask) == subnet) filtered.add(rule);
+            if ((rule.getMatch() & mask) == subnet) filtered.add(rule);
         }
         this.initialRules = filtered;
     }
@@ -1,16 +1,18 @@
 package org.snlab.network;
 
-import java.math.BigInteger;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class Rule {
     private int src, srcSuffix;
-    private BigInteger match;
-//    private BigInteger dstIp;
+    private long match, matchHi; // the destination ip (matchHi holds the high 64 bits of IPv6), bits beyond the prefix are zeros
+    private int width = 32; // the width of the destination ip, which the prefix is relative to
     private int prefix, priority;
     private Port outPort;
     private Device device;
     private boolean isLast = false;
+    private ArrayList<FieldMatch> fields = null; // matches on the other fields of the header schema, e.g., ACLs
 
     public Rule(Device device, long ipv4, int prefix, Port outPort) {
         this(device, ipv4, prefix, prefix, outPort);
@@ -19,16 +21,32 @@ public class Rule {
 
     public Rule(Device device, long ipv4, int prefix, int priority, Port outPort) {
         this.device = device;
-        this.match = BigInteger.valueOf(ipv4);
+        this.match = ipv4;
         this.prefix = prefix;
         this.priority = priority;
         this.outPort = outPort;
         this.src = this.srcSuffix = 0;
     }
 
+    public Rule(Device device, long ipv6Hi, long ipv6Lo, int prefix, Port outPort) {
+        this(device, ipv6Hi, ipv6Lo, prefix, prefix, outPort);
+    }
+
+    public Rule(Device device, long ipv6Hi, long ipv6Lo, int prefix, int priority, Port outPort) {
+        this(device, ipv6Lo, prefix, priority, outPort);
+        this.matchHi = ipv6Hi;
+        this.width = 128;
+    }
+
+    public Rule(Device device, int src, int srcSuffix, long ipv6Hi, long ipv6Lo, int prefix, int priority, Port outPort) {
+        this(device, ipv6Hi, ipv6Lo, prefix, priority, outPort);
+        this.src = src;
+        this.srcSuffix = srcSuffix;
+    }
+
     public Rule(Device device, int src, int srcSuffix, long ipv4, int prefix, Port outPort) {
         this.device = device;
-        this.match = BigInteger.valueOf(ipv4);
+        this.match = ipv4;
         this.prefix = prefix;
         this.priority = prefix;
         this.outPort = outPort;
@@ -47,10 +65,18 @@ public class Rule {
         return device;
     }
 
-    public BigInteger getMatch() {
+    public long getMatch() {
         return match;
     }
 
+    public long getMatchHi() {
+        return matchHi;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
     public int getPrefix() {
         return prefix;
     }
@@ -79,16 +105,30 @@ public class Rule {
         return this.srcSuffix;
     }
 
+    public void addField(FieldMatch fieldMatch) {
+        if (this.fields == null) this.fields = new ArrayList<>();
+        this.fields.add(fieldMatch);
+    }
+
+    public List<FieldMatch> getFields() {
+        return this.fields == null ? Collections.emptyList() : this.fields;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Rule rule = (Rule) o;
-        return priority == rule.priority && prefix == rule.prefix && Objects.equals(match, rule.match) && outPort == rule.outPort && device == rule.device;
+        return priority == rule.priority && prefix == rule.prefix && match == rule.match && matchHi == rule.matchHi && outPort == rule.outPort && device == rule.device
+                && getFields().equals(rule.getFields());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(match, prefix, outPort, device);
+        int ret = Long.hashCode(match);
+        ret = 31 * ret + Long.hashCode(matchHi);
+        ret = 31 * ret + prefix;
+        ret = 31 * ret + System.identityHashCode(outPort);
+        return 31 * ret + System.identityHashCode(device);
     }
 }
@@ -0,0 +1,73 @@
+package org.snlab.flash.ModelManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.snlab.flash.ModelManager.Ports.PersistentPorts;
+import org.snlab.flash.ModelManager.Ports.Ports;
+import org.snlab.network.Network;
+import org.snlab.network.Rule;
+
+public class BDDEngineTest {
+    /**
+     * @return the ECs, in the target engine, of a model on the engine after inserting all rules and deleting a third
+     */
+    private static Map<Ports, Long> ecs(Network network, List<Rule> rules, BDDEngine bddEngine, BDDEngine target) {
+        InverseModel model = new InverseModel(network, bddEngine, new PersistentPorts());
+        model.update(model.miniBatch(rules, new ArrayList<>()));
+        model.update(model.miniBatch(new ArrayList<>(), rules.subList(0, rules.size() / 3)));
+        return Fixtures.ecs(model, target);
+    }
+
+    @Test
+    public void intervalsGiveTheSameECs() {
+        Network network = Fixtures.network(4);
+        List<Rule> rules = Fixtures.rules(network, new Random(5), 300, 0);
+        BDDEngine target = new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA);
+        BDDEngine intervals = new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA);
+        intervals.useIntervals();
+
+        Map<Ports, Long> expected = ecs(network, rules, new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA), target);
+        assertEquals(expected, ecs(network, rules, intervals, target));
+        assertTrue(intervals.isOnIntervals());
+    }
+
+    @Test
+    public void boundedEncodingCacheGivesTheSameECs() {
+        Network network = Fixtures.network(4);
+        List<Rule> rules = Fixtures.rules(network, new Random(6), 300, 8);
+        BDDEngine target = new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA);
+        BDDEngine bounded = new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA);
+        bounded.setEncodingCacheLimit(16);
+
+        Map<Ports, Long> expected = ecs(network, rules, new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA), target);
+        assertEquals(expected, ecs(network, rules, bounded, target));
+        assertTrue(bounded.getEncodingCacheSize() <= 16);
+
+        long hits = bounded.getEncodingCacheHits();
+        Rule rule = rules.get(rules.size() - 1);
+        bounded.encodeIpv4(rule.getMatch(), rule.getPrefix());
+        assertEquals(hits + 1, bounded.getEncodingCacheHits());
+    }
+
+    @Test
+    public void batchGcGivesTheSameECs() {
+        Network network = Fixtures.network(4);
+        List<Rule> rules = Fixtures.rules(network, new Random(7), 300, 8);
+        BDDEngine target = new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA);
+        HeaderSchema schema = HeaderSchema.of(32);
+        BDDBackend bdd = BDDBackend.create(BDDBackend.Type.JAVA, schema.getVarNum());
+        BDDEngine batch = new BDDEngine(schema, bdd);
+        batch.setGcPolicy(BDDEngine.GcPolicy.BATCH);
+
+        Map<Ports, Long> expected = ecs(network, rules, new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA), target);
+        assertEquals(expected, ecs(network, rules, batch, target));
+        assertEquals(2, bdd.getGcCount());
+    }
+}
@@ -0,0 +1,87 @@
+package org.snlab.flash.ModelManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.snlab.flash.ModelManager.Ports.Ports;
+import org.snlab.network.Device;
+import org.snlab.network.Network;
+import org.snlab.network.Rule;
+
+/**
+ * Small random networks and FIBs, and the comparison of models across BDD engines.
+ */
+final class Fixtures {
+    static final int PORTS = 3;
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return a network of the devices d0, d1, ..., each with the ports p0, p1, ... besides the default one
+     */
+    static Network network(int devices) {
+        Network ret = new Network();
+        for (int i = 0; i < devices; i++) {
+            Device device = ret.addDevice("d" + i);
+            for (int j = 0; j < PORTS; j++) device.addPort("p" + j);
+        }
+        Device.cnt = 0;
+        ret.getAllDevices().forEach(device -> device.uid = Device.cnt++);
+        return ret;
+    }
+
+    /**
+     * @return n LPM rules on distinct (device, prefix), with prefixes of at least minPrefix bits
+     */
+    static List<Rule> rules(Network network, Random random, int n, int minPrefix) {
+        List<Device> devices = new ArrayList<>(network.getAllDevices());
+        HashSet<String> keys = new HashSet<>();
+        List<Rule> ret = new ArrayList<>();
+        while (ret.size() < n) {
+            Device device = devices.get(random.nextInt(devices.size()));
+            int prefix = minPrefix + random.nextInt(25 - minPrefix);
+            long ip = prefix == 0 ? 0 : (random.nextInt() & 0xffffffffL) & (0xffffffffL << (32 - prefix)) & 0xffffffffL;
+            if (keys.add(device.getName() + "/" + ip + "/" + prefix))
+                ret.add(new Rule(device, ip, prefix, device.getPort("p" + random.nextInt(PORTS))));
+        }
+        return ret;
+    }
+
+    /**
+     * @return the ECs of the model with their predicates rebuilt in the target engine, which exposes its nodes, so the
+     *         ECs of models on different engines are compared by equals
+     */
+    static Map<Ports, Long> ecs(InverseModel model, BDDEngine target) {
+        HashMap<Long, Long> memo = new HashMap<>();
+        HashMap<Ports, Long> ret = new HashMap<>();
+        for (Map.Entry<Ports, Number> entry : model.portsToPredicate.entrySet())
+            ret.put(entry.getKey(), copy(model.bddEngine, model.bddEngine.asBdd(entry.getValue().longValue()), target, memo));
+        return ret;
+    }
+
+    /**
+     * @return the ECs of the model within a subspace (a predicate of the target engine), empty ones left out
+     */
+    static Map<Ports, Long> ecs(InverseModel model, BDDEngine target, long space) {
+        HashMap<Ports, Long> ret = new HashMap<>();
+        for (Map.Entry<Ports, Long> entry : ecs(model, target).entrySet()) {
+            long t = target.and(entry.getValue(), space);
+            if (t != BDDEngine.BDDFalse) ret.put(entry.getKey(), t);
+        }
+        return ret;
+    }
+
+    private static long copy(BDDEngine from, long a, BDDEngine to, HashMap<Long, Long> memo) {
+        if (a == BDDEngine.BDDFalse || a == BDDEngine.BDDTrue) return a;
+        Long ret = memo.get(a);
+        if (ret != null) return ret;
+        ret = to.mk(from.getVar(a), copy(from, from.getLow(a), to, memo), copy(from, from.getHigh(a), to, memo));
+        memo.put(a, ret);
+        return ret;
+    }
+}
@@ -0,0 +1,69 @@
+package org.snlab.flash.ModelManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.snlab.flash.ModelManager.Ports.PersistentPorts;
+import org.snlab.network.Network;
+import org.snlab.network.Rule;
+
+public class ModelCheckpointTest {
+    @Test
+    public void loadRestoresTheSavedModel() throws IOException {
+        Random random = new Random(1);
+        Network network = Fixtures.network(4);
+        InverseModel model = new InverseModel(network, new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA), new PersistentPorts());
+        List<Rule> rules = Fixtures.rules(network, random, 300, 8);
+        model.update(model.miniBatch(rules, new ArrayList<>()));
+        model.update(model.miniBatch(new ArrayList<>(), rules.subList(0, 100)));
+
+        Path file = Files.createTempFile("flash", ".ckpt");
+        try {
+            ModelCheckpoint.save(model, file);
+            assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+            InverseModel loaded = ModelCheckpoint.load(network, new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA), new PersistentPorts(), file);
+            assertEquals(Fixtures.ecs(model, loaded.bddEngine), Fixtures.ecs(loaded, loaded.bddEngine));
+
+            // the restored rules are deleted and overlapped as the saved ones
+            List<Rule> more = Fixtures.rules(network, random, 100, 8);
+            List<Rule> deleted = rules.subList(100, 200);
+            model.update(model.miniBatch(more, deleted));
+            loaded.update(loaded.miniBatch(more, deleted));
+            assertEquals(Fixtures.ecs(model, loaded.bddEngine), Fixtures.ecs(loaded, loaded.bddEngine));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void ipv6RulesKeepTheirSourceMatch() throws IOException {
+        Network network = Fixtures.network(1);
+        InverseModel model = new InverseModel(network, new BDDEngine(HeaderSchema.of(128), BDDBackend.Type.JAVA), new PersistentPorts());
+        Rule rule = new Rule(network.getDevice("d0"), 5, 3, 0x2001_0db8_0000_0000L, 0L, 32, 100, network.getDevice("d0").getPort("p1"));
+        model.update(model.miniBatch(List.of(rule), new ArrayList<>()));
+
+        Path file = Files.createTempFile("flash", ".ckpt");
+        try {
+            ModelCheckpoint.save(model, file);
+            InverseModel loaded = ModelCheckpoint.load(network, new BDDEngine(HeaderSchema.of(128), BDDBackend.Type.JAVA), new PersistentPorts(), file);
+            assertEquals(Fixtures.ecs(model, loaded.bddEngine), Fixtures.ecs(loaded, loaded.bddEngine));
+            Rule restored = null;
+            RuleTable rules = loaded.getRules();
+            for (int id = 0; id < rules.end(); id++)
+                if (rules.isHeld(id) && rules.getRule(id).getPriority() == 100) restored = rules.getRule(id);
+            assertEquals(5, restored.getSrc());
+            assertEquals(3, restored.getSrcSuffix());
+            assertEquals(128, restored.getWidth());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
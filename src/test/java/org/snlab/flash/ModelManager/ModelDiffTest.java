@@ -0,0 +1,77 @@
+package org.snlab.flash.ModelManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.snlab.flash.ModelManager.Ports.PersistentPorts;
+import org.snlab.flash.ModelManager.Ports.Ports;
+import org.snlab.network.Device;
+import org.snlab.network.Network;
+import org.snlab.network.Port;
+import org.snlab.network.Rule;
+
+public class ModelDiffTest {
+    @Test
+    public void identicalModelsHaveNoDiff() {
+        Random random = new Random(3);
+        Network network = Fixtures.network(4);
+        BDDEngine bddEngine = new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA);
+        InverseModel model = new InverseModel(network, bddEngine, new PersistentPorts());
+        InverseModel again = new InverseModel(network, bddEngine, new PersistentPorts());
+        List<Rule> rules = Fixtures.rules(network, random, 200, 8);
+        model.update(model.miniBatch(rules, new ArrayList<>()));
+        again.update(again.miniBatch(rules, new ArrayList<>()));
+
+        assertTrue(ModelDiff.between(model, model.fork()).isEmpty());
+        assertTrue(ModelDiff.between(model, again).isEmpty());
+    }
+
+    @Test
+    public void diffOfAForkIsWhereItsPortsChanged() {
+        Random random = new Random(4);
+        Network network = Fixtures.network(4);
+        InverseModel model = new InverseModel(network, new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA), new PersistentPorts());
+        List<Rule> rules = Fixtures.rules(network, random, 200, 8);
+        model.update(model.miniBatch(rules, new ArrayList<>()));
+        InverseModel fork = model.fork();
+        List<Rule> insertions = Fixtures.rules(network, random, 20, 20);
+        insertions.removeIf(rule -> rules.stream().anyMatch(r -> r.getDevice() == rule.getDevice()
+                && r.getMatch() == rule.getMatch() && r.getPrefix() == rule.getPrefix()));
+        fork.update(fork.miniBatch(insertions, rules.subList(0, 20)));
+
+        ModelDiff diff = ModelDiff.between(model, fork);
+        assertFalse(diff.isEmpty());
+        BDDEngine bddEngine = model.bddEngine;
+        long expected = BDDEngine.BDDFalse;
+        HashSet<Device> devices = new HashSet<>();
+        for (Map.Entry<Ports, Number> before : model.portsToPredicate.entrySet()) {
+            for (Map.Entry<Ports, Number> after : fork.portsToPredicate.entrySet()) {
+                HashSet<Device> changed = changes(before.getKey(), after.getKey());
+                if (changed.isEmpty()) continue;
+                long t = bddEngine.and(before.getValue().longValue(), after.getValue().longValue());
+                if (t == BDDEngine.BDDFalse) continue;
+                expected = bddEngine.or(expected, t);
+                devices.addAll(changed);
+            }
+        }
+        assertEquals(expected, diff.getChangedSpace());
+        assertEquals(devices, diff.getDevices());
+    }
+
+    private static HashSet<Device> changes(Ports a, Ports b) {
+        HashMap<Device, Port> before = new HashMap<>();
+        for (Port p : a.getAll()) before.put(p.getDevice(), p);
+        HashSet<Device> ret = new HashSet<>();
+        for (Port p : b.getAll()) if (before.get(p.getDevice()) != p) ret.add(p.getDevice());
+        return ret;
+    }
+}
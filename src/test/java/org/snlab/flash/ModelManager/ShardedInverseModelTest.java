@@ -0,0 +1,42 @@
+package org.snlab.flash.ModelManager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.snlab.flash.ModelManager.Ports.PersistentPorts;
+import org.snlab.network.Network;
+import org.snlab.network.Rule;
+
+public class ShardedInverseModelTest {
+    private static final int BITS = 3;
+
+    @Test
+    public void shardsHoldTheECsOfTheUnshardedModel() {
+        Random random = new Random(2);
+        Network network = Fixtures.network(6);
+        InverseModel full = new InverseModel(network, new BDDEngine(HeaderSchema.of(32), BDDBackend.Type.JAVA), new PersistentPorts());
+        try (ShardedInverseModel sharded = new ShardedInverseModel(network, BITS, 32, BDDBackend.Type.JAVA, new PersistentPorts())) {
+            List<Rule> installed = new ArrayList<>();
+            for (int round = 0; round < 4; round++) {
+                List<Rule> insertions = Fixtures.rules(network, random, 150, 0), deletions = new ArrayList<>();
+                insertions.removeIf(rule -> installed.stream().anyMatch(r -> r.getDevice() == rule.getDevice()
+                        && r.getMatch() == rule.getMatch() && r.getPrefix() == rule.getPrefix()));
+                for (int i = 0; i < 40 && round > 0; i++) deletions.add(installed.remove(random.nextInt(installed.size())));
+                installed.addAll(insertions);
+                full.update(full.miniBatch(insertions, deletions));
+                sharded.update(insertions, deletions);
+
+                BDDEngine target = full.bddEngine;
+                for (int i = 0; i < sharded.getShardCount(); i++) {
+                    long space = target.encodeIpv4((long) i << (32 - BITS), BITS);
+                    assertEquals("round " + round + " shard " + i, Fixtures.ecs(full, target, space), Fixtures.ecs(sharded.getShard(i), target, space));
+                }
+                assertEquals(full.predSize(), sharded.predSize());
+            }
+        }
+    }
+}